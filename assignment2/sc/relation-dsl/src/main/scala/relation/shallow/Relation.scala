@@ -59,14 +59,81 @@ class Relation(val schema: Schema, val underlying: List[Row]) {
     )
   }
   /** Equi-join operation: combines each rows from two tables when their keys match
-    * the result relation does not have the join-key column from the right relation */
-  def join(o: Relation, leftKey: String, rightKey: String): Relation = {
-    val newSchema = new Schema(schema.columns ++ o.schema.columns.filter(_ != rightKey))
-    val joinedRows = for(r1 <- underlying; 
-        r2 <- o.underlying if r1.getField(schema, leftKey) == r2.getField(o.schema, rightKey)) yield
-      new Row(r1.values ++ r2.values.zip(o.schema.columns).filter(_._2 != rightKey).map(_._1))
-    new Relation(newSchema, joinedRows)
+    * the result relation does not have the join-key column from the right relation.
+    * Hashes the right relation if it is small enough (see `Relation.HashJoinMaxRows`),
+    * and sorts both relations otherwise; the rows come out in the same order either way */
+  def join(o: Relation, leftKey: String, rightKey: String): Relation =
+    join(o, leftKey, rightKey, Relation.HashJoinMaxRows)
+
+  /** Same, hashing right relations of at most `hashJoinMaxRows` rows */
+  @dontLift def join(o: Relation, leftKey: String, rightKey: String, hashJoinMaxRows: Int): Relation = {
+    if (o.underlying.lengthCompare(hashJoinMaxRows) <= 0) hashJoin(o, leftKey, rightKey)
+    else sortMergeJoin(o, leftKey, rightKey)
   }
+
+  /** Hash join: indexes the rows of `o` by key, then looks up the key of each
+    * of our rows. The rows come out in the order of a nested loop over both */
+  @dontLift def hashJoin(o: Relation, leftKey: String, rightKey: String): Relation = {
+    val l = schema.indexOf(leftKey)
+    val r = o.schema.indexOf(rightKey)
+
+    val rightRows = new scala.collection.mutable.HashMap[String, scala.collection.mutable.ArrayBuffer[List[String]]]
+    for (r2 <- o.underlying)
+      rightRows.getOrElseUpdate(r2.values(r), new scala.collection.mutable.ArrayBuffer[List[String]]) += r2.values.patch(r, Nil, 1)
+
+    val joinedRows = new scala.collection.mutable.ListBuffer[Row]
+    for (r1 <- underlying; rest <- rightRows.getOrElse(r1.values(l), Nil))
+      joinedRows += new Row(r1.values ++ rest)
+
+    new Relation(joinedSchema(o, r), joinedRows.toList)
+  }
+
+  /** Sort-merge join: sorts the rows of both relations by key, then walks them
+    * side by side to find the matching rows of each of ours. The rows come out
+    * in the order of a nested loop over both, as with `hashJoin` */
+  @dontLift def sortMergeJoin(o: Relation, leftKey: String, rightKey: String): Relation = {
+    val l = schema.indexOf(leftKey)
+    val r = o.schema.indexOf(rightKey)
+
+    // (key, index of the row), and (key, row values), sorted stably by key
+    val leftRows = underlying.toArray
+    val left     = leftRows.indices.map(i => (leftRows(i).values(l), i)).toArray.sortBy(_._1)
+    val right    = o.underlying.map(r2 => (r2.values(r), r2.values.patch(r, Nil, 1))).toArray.sortBy(_._1)
+
+    // the matching rows of each of ours are right(from(i)) until right(until(i))
+    val from  = new Array[Int](leftRows.length)
+    val until = new Array[Int](leftRows.length)
+    var i = 0
+    var j = 0
+    while (i < left.length && j < right.length) {
+      val key = left(i)._1
+      val c   = key compareTo right(j)._1
+
+      if (c < 0) i += 1
+      else if (c > 0) j += 1
+      else {
+        var end = j
+        while (end < right.length && right(end)._1 == key) end += 1
+
+        while (i < left.length && left(i)._1 == key) {
+          from(left(i)._2) = j
+          until(left(i)._2) = end
+          i += 1
+        }
+        j = end
+      }
+    }
+
+    val joinedRows = new scala.collection.mutable.ListBuffer[Row]
+    for (i <- leftRows.indices; k <- from(i) until until(i))
+      joinedRows += new Row(leftRows(i).values ++ right(k)._2)
+
+    new Relation(joinedSchema(o, r), joinedRows.toList)
+  }
+
+  /** Our columns, then those of `o` but its join-key column, at index `rightIndex` */
+  @dontLift private def joinedSchema(o: Relation, rightIndex: Int): Schema =
+    new Schema(schema.columns ++ o.schema.columns.patch(rightIndex, Nil, 1))
   
   //def aggregate(key: Schema, agg: (Double, Row) => Double): Relation = ???
   
@@ -85,6 +152,11 @@ class Relation(val schema: Schema, val underlying: List[Row]) {
   }
 }
 object Relation {
+  /** Largest right relation `join` hashes; a hash join takes linear time, but
+    * holds a table of all the rows of the right relation, where a sort-merge
+    * join only holds arrays of both */
+  @dontLift val HashJoinMaxRows = 1 << 20
+
   /** Scans a relation from a file, given its schema and a field delimiter */
   def scan(filename: String, schema: Schema, delimiter: String): Relation = {
     val sc = new java.util.Scanner(new java.io.File(filename))
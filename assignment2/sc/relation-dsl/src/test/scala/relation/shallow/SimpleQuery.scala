@@ -56,4 +56,28 @@ three|3|trois
 """
   	}
   }
+
+  "Joining R and S by hashing or by sorting" should "give the same result" in {
+    val expected = RScan.join(SScan, "digit", "digit").toString
+    RScan.hashJoin(SScan, "digit", "digit").toString should be (expected)
+    RScan.sortMergeJoin(SScan, "digit", "digit").toString should be (expected)
+  }
+
+  val EnScan = Relation.scan("data/En.csv", RSchema, "|")
+  val FrScan = Relation.scan("data/Fr.csv", SSchema, "|")
+
+  "Joining En and Fr by hashing or by sorting" should "give the same rows, in the same order" in {
+    val hashed = EnScan.join(FrScan, "digit", "digit", FrScan.underlying.size).toString
+    val sorted = EnScan.join(FrScan, "digit", "digit", 0).toString
+    EnScan.join(FrScan, "digit", "digit").underlying.size should be (10000)
+    sorted should be (hashed)
+  }
+
+  "Joining rows with repeated keys by hashing or by sorting" should "keep the order of the left rows" in {
+    val left  = new Relation(Schema("letter", "key"), List(List("x", "2"), List("y", "1"), List("z", "2")).map(new Row(_)))
+    val right = new Relation(Schema("key", "name"), List(List("2", "p"), List("1", "r"), List("2", "q")).map(new Row(_)))
+    val expected = List("x|2|p", "x|2|q", "y|1|r", "z|2|p", "z|2|q")
+    left.join(right, "key", "key", 3).underlying.map(_.toString) should be (expected)
+    left.join(right, "key", "key", 2).underlying.map(_.toString) should be (expected)
+  }
 }
@@ -0,0 +1,84 @@
+import java.nio.{ ByteBuffer, IntBuffer }
+import java.nio.channels.FileChannel
+import java.nio.file.{ Files, Paths, StandardCopyOption, StandardOpenOption }
+
+// checkpoint of OMVCC: the most recent committed value of every key as of a
+// snapshot, along with where the redo log tail starts. the file is
+// [magic: int][timestamp: long][log position: long][n: int] followed by n
+// [key: int][value: int] pairs sorted by key, and it is written aside then
+// renamed, so that a crash leaves either the previous checkpoint or the new
+// one.
+//
+// every commit before timestamp is in the checkpoint, and so is every
+// record of the redo log before the log position: recovery only needs to
+// replay the records after it whose commit timestamp is timestamp or later.
+final class Checkpoint private (val timestamp: Long, val logPosition: Long, pairs: IntBuffer) {
+  def size: Int = pairs.limit() / 2
+
+  def key(i: Int): Int   = pairs get (2 * i)
+  def value(i: Int): Int = pairs get (2 * i + 1)
+}
+
+object Checkpoint {
+  private final val Magic       = 0x4f4d5643 // "OMVC"
+  private final val HeaderBytes = 4 + 8 + 8 + 4
+  private final val ChunkBytes  = 1 << 16
+
+  // write a checkpoint at path; pairs holds the key of each pair in its high
+  // half and the value in its low half, sorting them sorts them by key
+  def write(path: String, timestamp: Long, logPosition: Long, pairs: Array[Long]): Unit = {
+    java.util.Arrays.sort(pairs)
+
+    val target  = Paths.get(path)
+    val aside   = Paths.get(path + ".tmp")
+    val channel = FileChannel.open(aside,
+      StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)
+
+    try {
+      val buffer = ByteBuffer.allocate(ChunkBytes)
+      buffer putInt Magic
+      buffer putLong timestamp
+      buffer putLong logPosition
+      buffer putInt pairs.length
+
+      for { pair <- pairs } {
+        if (buffer.remaining < 8) drain(channel, buffer)
+        buffer putLong pair
+      }
+
+      drain(channel, buffer)
+      channel force true
+    } finally channel.close()
+
+    Files.move(aside, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING)
+  }
+
+  // map the checkpoint at path in memory, or return null if there is none
+  def map(path: String): Checkpoint =
+    if (!Files.exists(Paths.get(path))) null
+    else {
+      val channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ)
+
+      try {
+        val size = channel.size
+        require(size >= HeaderBytes && size <= Int.MaxValue, "not a checkpoint: " + path)
+
+        val mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size)
+        require(mapped.getInt == Magic, "not a checkpoint: " + path)
+
+        val timestamp   = mapped.getLong
+        val logPosition = mapped.getLong
+        val n           = mapped.getInt
+        require(size == HeaderBytes + 8L * n, "truncated checkpoint: " + path)
+
+        // the mapping stays valid once the channel is closed
+        new Checkpoint(timestamp, logPosition, mapped.slice.asIntBuffer)
+      } finally channel.close()
+    }
+
+  private def drain(channel: FileChannel, buffer: ByteBuffer): Unit = {
+    buffer.flip()
+    while (buffer.hasRemaining) channel write buffer
+    buffer.clear()
+  }
+}
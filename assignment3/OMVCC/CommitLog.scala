@@ -0,0 +1,129 @@
+// what an xact wrote when it committed: the keys, their new values and the
+// values they had just before (VersionStore.Missing for a new key), along
+// with a summary of which small moduli divide any of those values
+final class CommitRecord(val keys: Array[Int],
+                         val values: Array[Int],
+                         val previousValues: Array[Long]) {
+
+  // set once drawn, before the record is appended to the log
+  var commitTimestamp: Long = -1
+
+  // of the writer, in SerializableSnapshot mode
+  var conflicts: Conflicts = null
+
+  // bit m-1 is set if a new or previous value is divisible by m, for m in
+  // 1 to 64
+  private val divisors: Long = {
+    var mask = 0L
+    var i    = 0
+    while (i < keys.length) {
+      mask |= CommitRecord.divisorsOf(values(i))
+      if (previousValues(i) != VersionStore.Missing) mask |= CommitRecord.divisorsOf(previousValues(i).toInt)
+      i += 1
+    }
+    mask
+  }
+
+  // whether a new or a previous value is divisible by modulus, i.e. whether
+  // this commit might change the result of a mod query on it
+  def touchesMultipleOf(modulus: Int): Boolean =
+    if (modulus > 0 && modulus <= 64) (divisors & (1L << (modulus - 1))) != 0
+    else {
+      var i = 0
+      while (i < keys.length && !matches(i, modulus)) i += 1
+      i < keys.length
+    }
+
+  // rough footprint of the record
+  def bytes: Long = 64 + keys.length * (4 + 4 + 8)
+
+  private def matches(i: Int, modulus: Int): Boolean =
+    values(i) % modulus == 0 ||
+      (previousValues(i) != VersionStore.Missing && previousValues(i).toInt % modulus == 0)
+}
+
+object CommitRecord {
+  private def divisorsOf(value: Int): Long = {
+    var mask = 0L
+    var m    = 1
+    while (m <= 64) {
+      if (value % m == 0) mask |= 1L << (m - 1)
+      m += 1
+    }
+    mask
+  }
+}
+
+
+// the recent commits, in commit timestamp order, and the timestamp of the
+// last commit of every key they wrote. commit validates an xact against the
+// commits that happened since it started only, so that its cost depends on
+// the size of the xact and on the concurrent writers, not on the history.
+//
+// not thread-safe: guarded by the lock of its Shard.
+final class CommitLog {
+  private var records = new Array[CommitRecord](64)
+  private var first   = 0 // records live in records(first until last)
+  private var last    = 0
+
+  private val lastCommits = new IntLongMap
+
+  def size: Int = last - first
+
+  // records must be appended in commit timestamp order
+  def append(record: CommitRecord): Unit = {
+    assert(size == 0 || records(last - 1).commitTimestamp < record.commitTimestamp)
+
+    if (last == records.length) {
+      // compact, and grow if more than half full
+      val capacity = if (size * 2 > records.length) records.length * 2 else records.length
+      val moved    = new Array[CommitRecord](capacity)
+      System.arraycopy(records, first, moved, 0, size)
+      records = moved
+      last   -= first
+      first   = 0
+    }
+
+    records(last) = record
+    last += 1
+
+    for { key <- record.keys } lastCommits(key) = record.commitTimestamp
+  }
+
+  // timestamp of the last commit that wrote key, or -1
+  def lastCommitOf(key: Int): Long = lastCommits.getOrElse(key, -1)
+
+  // give f the commits more recent than the given timestamp, in order
+  def foreachAfter(timestamp: Long)(f: CommitRecord => Unit): Unit = {
+    var i = firstAfter(timestamp)
+    while (i < last) {
+      f(records(i))
+      i += 1
+    }
+  }
+
+  // forget the commits at or before lowWater; return the dropped records
+  def prune(lowWater: Long): Seq[CommitRecord] = {
+    val end     = firstAfter(lowWater)
+    val dropped = records.slice(first, end).toSeq
+
+    java.util.Arrays.fill(records.asInstanceOf[Array[AnyRef]], first, end, null)
+    first = end
+
+    lastCommits retain { (_, timestamp) => timestamp > lowWater }
+
+    dropped
+  }
+
+  // index of the first record committed after the given timestamp
+  private def firstAfter(timestamp: Long): Int = {
+    var low  = first
+    var high = last
+    while (low < high) {
+      val mid = (low + high) >>> 1
+      if (records(mid).commitTimestamp <= timestamp) low = mid + 1
+      else high = mid
+    }
+    low
+  }
+}
@@ -0,0 +1,62 @@
+// the rw-antidependencies of an xact, in SerializableSnapshot mode (see
+// OMVCC.setIsolation). an xact R has one to a concurrent xact W when R read
+// a version older than one W wrote, or missed one that W wrote and that its
+// mod query or scan would have found: W comes after R in any equivalent
+// serial order, even though it might commit first.
+//
+// snapshot isolation lets such dependencies close a cycle, but every cycle
+// goes through a pivot, an xact with both an incoming and an outgoing one
+// (Cahill et al., Serializable Isolation for Snapshot Databases). no xact is
+// let to commit as a pivot: it aborts when it would, and so does an xact
+// that would turn one that already committed into a pivot.
+//
+// the flags of an xact are set by itself and by the xacts committing
+// concurrently, with its monitor held.
+final class Conflicts {
+  var in        = false // a concurrent xact read a version older than one of ours
+  var out       = false // we read a version older than one of a concurrent xact
+  var committed = false // passed the checks of commit, and is committing
+
+  @volatile var aborted         = false
+  @volatile var commitTimestamp = -1L
+
+  // mark this xact as committing, unless it is a pivot; return whether it is
+  def commitUnlessPivot(): Boolean = synchronized {
+    committed = !(in && out)
+    committed
+  }
+}
+
+object Conflicts {
+  // record that reader read a version older than one writer wrote, or is
+  // about to write; return false if one of them already committed and is
+  // now a pivot, in which case the other one must not commit
+  def add(reader: Conflicts, writer: Conflicts): Boolean = {
+    val readerSafe = reader.synchronized {
+      reader.out = true
+      !(reader.committed && reader.in)
+    }
+
+    val writerSafe = writer.synchronized {
+      writer.in = true
+      !(writer.committed && writer.out)
+    }
+
+    readerSafe && writerSafe
+  }
+}
+
+
+// a mod query or a scan run by an xact in SerializableSnapshot mode, which
+// the concurrent writers that might change its result must find
+sealed abstract class PredicateRead(val reader: Conflicts) {
+  def affectedBy(record: CommitRecord): Boolean
+}
+
+final class ModqueryRead(reader: Conflicts, modulus: Int) extends PredicateRead(reader) {
+  def affectedBy(record: CommitRecord): Boolean = record touchesMultipleOf modulus
+}
+
+final class RangeRead(reader: Conflicts, from: Int, until: Int) extends PredicateRead(reader) {
+  def affectedBy(record: CommitRecord): Boolean = record.keys exists { key => key >= from && key < until }
+}
@@ -0,0 +1,120 @@
+import scala.collection.concurrent.TrieMap
+import java.util.concurrent.atomic.AtomicLong
+
+// read-only replica of OMVCC, fed by the primary through a Transport (see
+// OMVCC.addFollower).
+//
+// write sets are applied in the order they arrive, which is their commit
+// timestamp order, on a thread of the follower; the watermark is the
+// commit timestamp of the last one applied. xacts read from a snapshot
+// taken at the watermark, thus see a prefix of the history of the primary,
+// and never wait for the write sets applied meanwhile.
+final class Follower(transport: Transport) {
+  import OMVCC.{ NoSuchKeyException, NoSuchXactException }
+  import VersionStore.Missing
+
+  // no version is ever uncommitted here
+  private val storage = new VersionStore(new VersionStore.Owners {
+    def commitTimestampOf(owner: Long): Long = -1
+  })
+
+  // xact -> start timestamp, a lower bound until begin reads the actual one
+  private val xacts = TrieMap[Long, Long]()
+  private val xactIdGen = new AtomicLong(0)
+
+  @volatile private var applied = 0L
+  @volatile private var lastLag = 0L
+
+  private val applier = new Thread(new Runnable {
+    def run(): Unit = {
+      var writes = transport.receive()
+      while (writes != null) {
+        apply(writes)
+        writes = transport.receive()
+      }
+    }
+  }, "OMVCC-follower")
+
+  applier setDaemon true
+  applier.start()
+
+  // commit timestamp of the last write set applied
+  def watermark: Long = applied
+
+  // how long the last write set applied took to get here from the primary
+  def lagMillis: Long = lastLag
+
+  // start a read-only xact, at the watermark
+  def begin: Long = {
+    val xact = xactIdGen.incrementAndGet()
+
+    // register the oldest possible snapshot before reading the watermark, so
+    // that a collectGarbage missing the registration read the watermark
+    // before we do, and keeps what our snapshot needs (as in OMVCC.begin)
+    xacts += xact -> 0L
+    xacts(xact) = applied + 1
+
+    xact
+  }
+
+  @throws(classOf[Exception])
+  def read(xact: Long, key: Int): Int = {
+    val value = storage.readVisible(key, startOf(xact))
+
+    if (value == Missing) {
+      xacts -= xact
+      throw NoSuchKeyException(xact, key)
+    }
+
+    value.toInt
+  }
+
+  @throws(classOf[Exception])
+  def modquery(xact: Long, k: Int): java.util.List[Integer] = {
+    val l = new java.util.ArrayList[Integer]
+
+    storage.scan(startOf(xact), -1, new VersionStore.Visitor {
+      def visit(key: Int, value: Int): Unit = if (value % k == 0) l add value
+    })
+
+    l
+  }
+
+  // end a read-only xact; there is nothing to validate
+  @throws(classOf[Exception])
+  def commit(xact: Long): Unit = {
+    startOf(xact)
+    xacts -= xact
+  }
+
+  // wait until the watermark reaches the given commit timestamp, at most
+  // timeoutMillis; return whether it did
+  def awaitWatermark(commitTimestamp: Long, timeoutMillis: Long): Boolean = {
+    val deadline = System.currentTimeMillis + timeoutMillis
+    while (applied < commitTimestamp && System.currentTimeMillis < deadline) Thread.sleep(1)
+    applied >= commitTimestamp
+  }
+
+  // drop the versions that no running or future xact can read
+  def collectGarbage(): Long = {
+    val bound    = applied + 1
+    val lowWater = (xacts.valuesIterator foldLeft bound) { _ min _ }
+    storage collect lowWater
+  }
+
+  // stop applying write sets, once those already sent are
+  def close(): Unit = {
+    transport.close()
+    applier.join()
+  }
+
+  private def apply(writes: WriteSet): Unit = {
+    for { i <- writes.keys.indices } storage.push(writes.keys(i), writes.values(i), writes.commitTimestamp)
+
+    applied = writes.commitTimestamp
+    lastLag = System.currentTimeMillis - writes.shippedAtMillis
+  }
+
+  private def startOf(xact: Long): Long =
+    xacts get xact getOrElse { throw NoSuchXactException(xact) }
+}
@@ -0,0 +1,87 @@
+// open-addressing map from int keys to long values, without boxing.
+// not thread-safe: callers guard it themselves.
+final class IntLongMap(initialCapacity: Int = 16) {
+  require(Integer.bitCount(initialCapacity) == 1, "the capacity must be a power of two")
+
+  private var keys   = new Array[Int](initialCapacity)
+  private var values = new Array[Long](initialCapacity)
+  private var filled = new Array[Boolean](initialCapacity)
+  private var count  = 0
+
+  def size: Int = count
+
+  def isEmpty: Boolean = count == 0
+
+  def contains(key: Int): Boolean = filled(find(key))
+
+  def getOrElse(key: Int, default: Long): Long = {
+    val slot = find(key)
+    if (filled(slot)) values(slot) else default
+  }
+
+  def update(key: Int, value: Long): Unit = {
+    if ((count + 1) * 4 > keys.length * 3) rehash(keys.length * 2)
+
+    val slot = find(key)
+    if (!filled(slot)) {
+      keys(slot)   = key
+      filled(slot) = true
+      count += 1
+    }
+    values(slot) = value
+  }
+
+  def foreach(f: (Int, Long) => Unit): Unit = {
+    var i = 0
+    while (i < keys.length) {
+      if (filled(i)) f(keys(i), values(i))
+      i += 1
+    }
+  }
+
+  // keep only the entries satisfying p, and return the number of removed ones
+  def retain(p: (Int, Long) => Boolean): Int = {
+    val before = count
+    rehash(keys.length, p)
+    before - count
+  }
+
+  private def find(key: Int): Int = {
+    val mask = keys.length - 1
+    var slot = IntLongMap.hash(key) & mask
+
+    while (filled(slot) && keys(slot) != key) slot = (slot + 1) & mask
+
+    slot
+  }
+
+  private def rehash(capacity: Int, p: (Int, Long) => Boolean = (_, _) => true): Unit = {
+    val oldKeys   = keys
+    val oldValues = values
+    val oldFilled = filled
+
+    keys   = new Array[Int](capacity)
+    values = new Array[Long](capacity)
+    filled = new Array[Boolean](capacity)
+    count  = 0
+
+    var i = 0
+    while (i < oldKeys.length) {
+      if (oldFilled(i) && p(oldKeys(i), oldValues(i))) {
+        val slot = find(oldKeys(i))
+        keys(slot)   = oldKeys(i)
+        values(slot) = oldValues(i)
+        filled(slot) = true
+        count += 1
+      }
+      i += 1
+    }
+  }
+}
+
+object IntLongMap {
+  private def hash(key: Int): Int = {
+    val h = key * 0x9E3779B9
+    h ^ (h >>> 16)
+  }
+}
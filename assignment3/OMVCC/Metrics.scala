@@ -0,0 +1,197 @@
+import java.util.concurrent.atomic.{ LongAccumulator, LongAdder }
+import java.util.function.LongBinaryOperator
+
+// what OMVCC did since its metrics were enabled (see OMVCC.enableMetrics):
+// the latency of its operations, the number of xacts committed, and of those
+// aborted for each reason (see OMVCC.NoSuchKey and the following), along
+// with gauges read on demand: the number of running xacts, and the length of
+// the version chains.
+//
+// counters are striped (LongAdder), so that threads counting concurrently do
+// not contend on one cache line; they are summed when read. the metrics are
+// read as a map from names to values: counts are since the metrics were
+// enabled, so that rates are the differences between two readings.
+final class Metrics(activeXacts: () => Int, chainLengths: Histogram => Unit) {
+  import Metrics._
+
+  private val latencies = Array.fill(Operations.length) { new Histogram }
+  private val aborts    = Array.fill(Reasons.length) { new LongAdder }
+  private val commits   = new LongAdder
+
+  // one more operation, started at the given System.nanoTime
+  def record(operation: Int, start: Long): Unit = latencies(operation) record (System.nanoTime - start)
+
+  def committed(xacts: Int): Unit = commits add xacts
+
+  def aborted(reason: Int): Unit = aborts(reason).increment()
+
+  // the current values, by name, in a stable order; the chains are measured
+  // by visiting every key, which takes about as long as a scan of the store
+  def snapshot: java.util.Map[String, java.lang.Long] = {
+    val values = new java.util.LinkedHashMap[String, java.lang.Long]
+
+    def put(name: String, value: Long): Unit = values.put(name, value)
+
+    for { (name, latency) <- Operations zip latencies } {
+      put(name + ".count", latency.count)
+      put(name + ".meanNanos", latency.mean)
+      put(name + ".p50Nanos", latency percentile 0.5)
+      put(name + ".p99Nanos", latency percentile 0.99)
+      put(name + ".p999Nanos", latency percentile 0.999)
+      put(name + ".maxNanos", latency.max)
+    }
+
+    put("xacts.active", activeXacts())
+    put("xacts.committed", commits.sum)
+    put("xacts.aborted", (aborts foldLeft 0L) { _ + _.sum })
+    for { (name, count) <- Reasons zip aborts } put("aborts." + name, count.sum)
+
+    val chains = new Histogram
+    chainLengths(chains)
+
+    put("chains.count", chains.count)
+    put("chains.p50", chains percentile 0.5)
+    put("chains.p99", chains percentile 0.99)
+    put("chains.max", chains.max)
+
+    values
+  }
+}
+
+object Metrics {
+  // the timed operations
+  final val Begin    = 0
+  final val Read     = 1
+  final val Modquery = 2
+  final val Write    = 3
+  final val Commit   = 4
+  final val ReadMany = 5
+  final val Scan     = 6
+
+  private val Operations = Array("begin", "read", "modquery", "write", "commit", "readMany", "scan")
+
+  // indexed by the reasons of OMVCC
+  private val Reasons = Array("noSuchKey", "writeConflict", "readOnlyWrite", "readConflict", "phantom", "dangerous")
+
+  final val MBeanName = "OMVCC:type=Metrics"
+
+  def reasonName(reason: Int): String = Reasons(reason)
+
+  // the snapshots of metrics as the read-only attributes of an MBean
+  final class MBean(metrics: Metrics) extends javax.management.DynamicMBean {
+    import javax.management._
+
+    def getAttribute(name: String): AnyRef = {
+      val value = metrics.snapshot get name
+      if (value == null) throw new AttributeNotFoundException(name)
+      value
+    }
+
+    def getAttributes(names: Array[String]): AttributeList = {
+      val snapshot   = metrics.snapshot
+      val attributes = new AttributeList
+
+      for { name <- names if snapshot containsKey name } attributes add new Attribute(name, snapshot get name)
+
+      attributes
+    }
+
+    def setAttribute(attribute: Attribute): Unit = throw new AttributeNotFoundException(attribute.getName)
+
+    def setAttributes(attributes: AttributeList): AttributeList = new AttributeList
+
+    def invoke(action: String, params: Array[AnyRef], signature: Array[String]): AnyRef =
+      throw new ReflectionException(new NoSuchMethodException(action))
+
+    def getMBeanInfo: MBeanInfo = {
+      val names      = metrics.snapshot.keySet.toArray(new Array[String](0))
+      val attributes = names map { name =>
+        new MBeanAttributeInfo(name, "java.lang.Long", name, true, false, false)
+      }
+
+      new MBeanInfo(classOf[Metrics].getName, "OMVCC metrics", attributes, null, null, null)
+    }
+  }
+}
+
+
+// a histogram of non-negative values, in the manner of HdrHistogram: the
+// buckets double in width every SubBuckets buckets, so that a value is known
+// within 1/SubBuckets of its magnitude (6%), from 1 to Long.MaxValue, with a
+// fixed number of buckets. every bucket is a striped counter, and so are the
+// sum and the maximum of the values
+final class Histogram {
+  import Histogram._
+
+  private val counts  = Array.fill(BucketCount) { new LongAdder }
+  private val sum     = new LongAdder
+  private val maximum = new LongAccumulator(Max, 0)
+
+  def record(value: Long): Unit = {
+    val v = value max 0
+
+    counts(bucketOf(v)).increment()
+    sum add v
+    maximum accumulate v
+  }
+
+  def count: Long = (counts foldLeft 0L) { _ + _.sum }
+
+  def mean: Long = {
+    val n = count
+    if (n == 0) 0 else sum.sum / n
+  }
+
+  def max: Long = maximum.get
+
+  // the smallest value at least the given fraction of the recorded values
+  // are no greater than, rounded up to the end of its bucket; buckets are
+  // read one at a time, while values keep being recorded
+  def percentile(fraction: Double): Long = {
+    val sums = counts map { _.sum }
+    val n    = sums.sum
+
+    if (n == 0) 0
+    else {
+      val rank   = math.ceil(fraction * n).toLong max 1
+      var bucket = 0
+      var seen   = sums(0)
+
+      while (seen < rank && bucket < BucketCount - 1) {
+        bucket += 1
+        seen   += sums(bucket)
+      }
+
+      highestOf(bucket) min max
+    }
+  }
+}
+
+object Histogram {
+  private final val SubBits     = 4
+  private final val SubBuckets  = 1 << SubBits
+  private final val BucketCount = (64 - SubBits) * SubBuckets
+
+  private val Max = new LongBinaryOperator {
+    def applyAsLong(a: Long, b: Long): Long = a max b
+  }
+
+  // values below SubBuckets have a bucket each; then the values from 2^e
+  // until 2^(e+1) share SubBuckets buckets
+  private def bucketOf(value: Long): Int =
+    if (value < SubBuckets) value.toInt
+    else {
+      val e = 63 - java.lang.Long.numberOfLeadingZeros(value)
+      (e - SubBits + 1) * SubBuckets + ((value >>> (e - SubBits)) & (SubBuckets - 1)).toInt
+    }
+
+  private def lowestOf(bucket: Int): Long =
+    if (bucket < SubBuckets) bucket
+    else {
+      val e = bucket / SubBuckets + SubBits - 1
+      (SubBuckets + bucket % SubBuckets).toLong << (e - SubBits)
+    }
+
+  private def highestOf(bucket: Int): Long =
+    if (bucket == BucketCount - 1) Long.MaxValue else lowestOf(bucket + 1) - 1
+}
@@ -0,0 +1,30 @@
+// index of the keys that may hold a value divisible by a registered modulus,
+// see OMVCC.registerModulus.
+//
+// an entry is stamped with a lower bound of the commit timestamp of the
+// first divisible version of its key: snapshots older than the stamp cannot
+// see any such version and skip the key. entries are only added when xacts
+// commit and only removed by the garbage collector, both with the commit
+// lock held, so the index is always a superset of the keys a snapshot needs.
+final class ModIndex(val modulus: Int) {
+  import scala.collection.concurrent.TrieMap
+
+  require(modulus != 0, "cannot index values modulo zero")
+
+  private val entries = TrieMap[Int, Long]()
+
+  def matches(value: Int): Boolean = value % modulus == 0
+
+  // keep the stamp of an existing entry, as it is older
+  def add(key: Int, timestamp: Long): Unit = entries putIfAbsent (key, timestamp)
+
+  def remove(key: Int): Unit = entries -= key
+
+  def size: Int = entries.size
+
+  // the keys a snapshot taken at `before` might see a divisible value for
+  def foreachCandidate(before: Long)(f: Int => Unit): Unit =
+    for { (key, timestamp) <- entries if timestamp < before } f(key)
+
+  def foreachKey(f: Int => Unit): Unit = entries.keys foreach f
+}
@@ -14,51 +14,240 @@
 //   are refused and for operations that are refused and cause the Xact to be
 //   aborted. Keep it simple!
 // - keep the interface, we want to test automatically!
+//
+// the store can be driven from many threads at once: timestamps come from
+// atomic counters, and keys are partitioned over Shards, each with its own
+// lock-striped VersionStore; only the validation of commits touching the
+// same shards is serialized. a given xact must still be driven
+// by one thread at a time.
+//
+// commits are kept in memory only, unless a RedoLog is opened with
+// openRedoLog, which also recovers the commits it recorded before a crash,
+// starting from a Checkpoint if one was taken. commits can also be shipped
+// to read-only Followers.
 object OMVCC {
-  import scala.collection.mutable.{ Map => MutableMap, Set => MutableSet }
-  import scala.annotation.tailrec
-
-  private case class Transaction(startTimestamp: Long) {
-    val undoBuffer    = MutableSet[Int]() // set of keys updated by this xact
-    val readPreds     = MutableSet[Int]() // set of key
-    val modqueryPreds = MutableSet[Int]() // set of modulus
-
-    var commitTimestamp: Long = -1 // unset
+  import scala.collection.mutable.{ Set => MutableSet }
+  import scala.collection.concurrent.TrieMap
+  import java.util.concurrent.{ CountDownLatch, Executors, ForkJoinPool, RecursiveTask, ScheduledExecutorService, ThreadFactory, TimeUnit }
+  import java.util.concurrent.atomic.AtomicLong
+  import java.util.function.IntConsumer
+  import java.lang.management.ManagementFactory
+  import javax.management.ObjectName
+  import VersionStore.Missing
+
+  // an xact begun with beginReadOnly is `pinned`: it tracks nothing
+  private class Transaction(initialTimestamp: Long, val pinned: Boolean = false) {
+    // a lower bound until begin draws the actual start timestamp
+    @volatile var startTimestamp: Long = initialTimestamp
+
+    val undoBuffer    = if (pinned) NoWrites else new IntLongMap  // key -> our version of it, see VersionStore.write
+    val readPreds     = if (pinned) NoKeys else MutableSet[Int]() // set of key
+    val modqueryPreds = if (pinned) NoKeys else MutableSet[Int]() // set of modulus
+    var rangePreds    = List[(Int, Int)]()                          // from, until
+
+    // set before the versions of this xact are installed, so that concurrent
+    // readers can already see them (see VersionStore.readVisible)
+    @volatile var commitTimestamp: Long = -1 // unset, or DrawingTimestamp
+
+    // released once the versions of this xact are installed or discarded,
+    // for the writers waiting for them (see write)
+    val over = if (pinned) null else new CountDownLatch(1)
+
+    // its rw-antidependencies, in SerializableSnapshot mode only
+    val conflicts = if (pinned || isolation != SerializableSnapshot) null else new Conflicts
 
     def isReadOnly = undoBuffer.isEmpty
   }
 
 
-  sealed abstract class Version
-  case class CommittedVersion(value: Int, timestamp: Long) extends Version
-  case class TemporaryVersion(value: Int, xactOwner: Long) extends Version
+  // commitTimestamp of an xact about to be given its commit timestamp
+  private final val DrawingTimestamp = -2L
+
+  // the sets of pinned xacts, which stay empty
+  private val NoKeys   = MutableSet[Int]()
+  private val NoWrites = new IntLongMap
 
 
   case class NoSuchKeyException(xact: Long, key: Int) extends Exception
-  case class BadWriteException(xact: Long, key: Int, value: Int) extends Exception
-  case class BadCommitException(xact: Long) extends Exception
+  case class BadWriteException(xact: Long, key: Int, value: Int, reason: Int) extends Exception(Metrics reasonName reason)
+  case class BadCommitException(xact: Long, reason: Int) extends Exception(Metrics reasonName reason)
   case class NoSuchXactException(xact: Long) extends Exception
 
 
+  // why an xact was aborted, as given by the exceptions and counted by Metrics
+  final val NoSuchKey     = 0 // read a key with no version in its snapshot
+  final val WriteConflict = 1 // wrote a key written since it started, or being written
+  final val ReadOnlyWrite = 2 // wrote in an xact begun with beginReadOnly
+  final val ReadConflict  = 3 // committed after reading a key written since it started
+  final val Phantom       = 4 // committed after a mod query or a scan whose result changed since
+  final val Dangerous     = 5 // would commit as a pivot, see Conflicts
+
+  // what conflictOf returns for an xact that can commit
+  private final val NoConflict = -1
+
+
+  // how commit makes xacts serializable, see setIsolation
+  final val SnapshotValidation   = 0
+  final val SerializableSnapshot = 1
+
+
+  // outcomes of commitBatch
+  final val Committed  = 0
+  final val Aborted    = 1
+  final val NoSuchXact = 2
+
+  // an xact that passed the checks of commit, and what it is about to commit
+  private case class Pending(xact: Long, t: Transaction, record: CommitRecord)
+
+  // the values divisible by k the given xact sees in the segments from until
+  // `until`, numbered across shards, found by splitting the range in halves
+  // down to single segments
+  private final class ModqueryTask(before: Long, owner: Long, k: Int, from: Int, until: Int)
+      extends RecursiveTask[Array[Int]] {
+
+    def compute(): Array[Int] =
+      if (until - from == 1) {
+        val matches = scala.collection.mutable.ArrayBuilder.make[Int]
+
+        val segment = from % Shard.SegmentsPerShard
+
+        shards(from / Shard.SegmentsPerShard).storage.scan(before, owner, new VersionStore.Visitor {
+          def visit(key: Int, value: Int): Unit = if (value % k == 0) matches += value
+        }, segment, segment + 1)
+
+        matches.result
+      } else {
+        val middle = (from + until) >>> 1
+        val left   = new ModqueryTask(before, owner, k, from, middle)
+
+        left.fork()
+        val right = new ModqueryTask(before, owner, k, middle, until).compute()
+        val head  = left.join()
+
+        val merged = new Array[Int](head.length + right.length)
+        System.arraycopy(head, 0, merged, 0, head.length)
+        System.arraycopy(right, 0, merged, head.length, right.length)
+        merged
+      }
+  }
+
+  final val DefaultParallelThreshold = 1 << 16
+
+  // log sequence numbers of a commit refused by validation, and of one that
+  // was not logged
+  private final val Rejected  = -2L
+  private final val NotLogged = -1L
+
+
+  // what garbage collection reclaimed; bytes are an estimate
+  case class GarbageCollection(versions: Long, commits: Long, bytes: Long) {
+    def +(that: GarbageCollection) =
+      GarbageCollection(versions + that.versions, commits + that.commits, bytes + that.bytes)
+  }
+
+
   // list of active xacts
-  private val xacts = MutableMap[Long, Transaction]()
-  private val commits = MutableSet[Transaction]()
+  private val xacts = TrieMap[Long, Transaction]()
+
+  // key-(value+version) storage, and the recent commits
+  private val owners = new VersionStore.Owners {
+    // an xact owning uncommitted versions stays in xacts until they are all
+    // installed or discarded
+    def commitTimestampOf(owner: Long): Long = {
+      val x = xacts lookup owner
+      if (x eq null) -1
+      else {
+        var ts = x.commitTimestamp
+        while (ts == DrawingTimestamp) {
+          Thread.`yield`()
+          ts = x.commitTimestamp
+        }
+        ts
+      }
+    }
+  }
+
+  // every key of the store, in order, for scan
+  private val keyIndex = new java.util.concurrent.ConcurrentSkipListSet[Integer]
+
+  private val shards = Array.fill(Shard.Count) { new Shard(owners, keyIndex) }
+
+  private val startAndCommitTimestampGen = new AtomicLong(0)
+  private val transactionIdGen           = new AtomicLong(VersionStore.OwnerBase)
 
-  // key-(value+version) storage
-  private val storage = MutableMap[Int, List[Version]]().withDefaultValue(Nil)
+  // indexes of the registered moduli; replaced with every shard locked
+  @volatile private var modIndexes = Map[Int, ModIndex]()
 
-  private var startAndCommitTimestampGen: Long = 0
-  private var transactionIdGen: Long = 1L << 62
+  // store size from which modquery scans in parallel
+  @volatile private var parallelThreshold = DefaultParallelThreshold
+
+  // how long write waits for the owner of an uncommitted version; see
+  // setWriteWait
+  @volatile private var writeWaitNanos = 0L
+
+  // see setIsolation
+  @volatile private var isolation = SnapshotValidation
+
+  // the mod queries and scans of the xacts in SerializableSnapshot mode,
+  // until collectGarbage finds that no writer can be concurrent with them
+  private val predicateReads = new java.util.concurrent.ConcurrentLinkedQueue[PredicateRead]
+
+  // where commits are recorded, if anywhere; replaced with every shard locked
+  @volatile private var redoLog: RedoLog = null
+
+  // where commits are shipped to; replaced under shipLock, and extended
+  // with every shard locked as well
+  @volatile private var followers = List[Shipper]()
+  private val shipLock = new Object
+
+  // serialize checkpoints, and guard the background checkpointer
+  private val checkpointLock = new Object
+  private var checkpointer: ScheduledExecutorService = null
+
+  // serialize garbage collections, and guard the background collector
+  private val gcLock = new Object
+  private var collector: ScheduledExecutorService = null
+  @volatile private var reclaimed = GarbageCollection(0, 0, 0)
+
+  // what the operations are measured with, if at all: disabled, they only
+  // read this field; replaced under metricsLock
+  @volatile private var metrics: Metrics = null
+  private val metricsLock = new Object
 
 
   // returns transaction id == logical start timestamp
   def begin: Long = {
-    startAndCommitTimestampGen += 1   // SHOULD BE USED
-    transactionIdGen += 1             // SHOULD BE USED
+    val m = metrics
+    if (m eq null) beginUntimed
+    else {
+      val start = System.nanoTime
+      try beginUntimed finally m.record(Metrics.Begin, start)
+    }
+  }
+
+  private def beginUntimed: Long = {
+    val xact = transactionIdGen.incrementAndGet() // SHOULD BE USED
+
+    // register the xact before drawing its start timestamp so that the
+    // garbage collector never misses a snapshot (see oldestSnapshot)
+    val t = new Transaction(startAndCommitTimestampGen.get)
+    xacts += xact -> t
+    t.startTimestamp = startAndCommitTimestampGen.incrementAndGet() // SHOULD BE USED
+
+    xact
+  }
 
-    val xact = transactionIdGen
+  // start an xact that only reads, from the most recent snapshot: it
+  // neither draws a timestamp nor tracks what it reads, and write refuses
+  // it (the xact is aborted)
+  def beginReadOnly: Long = {
+    val xact = transactionIdGen.incrementAndGet()
 
-    xacts += xact -> Transaction(startAndCommitTimestampGen)
+    // registered for the garbage collector only, as in begin; the commits
+    // drawing their timestamp from now on are not visible to the snapshot
+    val t = new Transaction(startAndCommitTimestampGen.get, pinned = true)
+    xacts += xact -> t
+    t.startTimestamp = startAndCommitTimestampGen.get + 1
 
     xact
   }
@@ -69,27 +258,117 @@ object OMVCC {
   // a NoSuchKeyException is thrown;
   @throws(classOf[Exception])
   def read(xact: Long, key: Int): Int = {
+    val m = metrics
+    if (m eq null) readUntimed(xact, key)
+    else {
+      val start = System.nanoTime
+      try readUntimed(xact, key) finally m.record(Metrics.Read, start)
+    }
+  }
+
+  private def readUntimed(xact: Long, key: Int): Int = {
     val t = getTransaction(xact)
 
     // (1) either the key was written at least once by the given transaction,
     // (2) or it was committed by another transaction before this one began,
     // (3) or the key was never committed or written by this transaction.
 
-    t.readPreds += key
+    addRead(t, key)
 
     if (t.undoBuffer contains key) {
       // (1)
-      getTemporaryVersion(t, xact, key)
+      getTemporaryVersion(t, key)
     } else {
-      getMostRecentReadableVersion(t.startTimestamp, key) match {
-        case Some(value) =>
-          // (2)
-          value
-
-        case None =>
-          // (3)
-          rollback(xact)
-          throw NoSuchKeyException(xact, key)
+      val value = shardOf(key).storage.readVisible(key, t.startTimestamp)
+
+      if (value != Missing) {
+        // (2)
+        value.toInt
+      } else {
+        // (3)
+        abort(xact, NoSuchKey)
+        throw NoSuchKeyException(xact, key)
+      }
+    }
+  }
+
+  // read the given keys at once, giving the value of keys(i) in out(i); as
+  // with read, if one of the keys doesn't exist, the xact is aborted and a
+  // NoSuchKeyException is thrown
+  @throws(classOf[Exception])
+  def readMany(xact: Long, keys: Array[Int], out: Array[Int]): Unit = {
+    val m = metrics
+    if (m eq null) readManyUntimed(xact, keys, out)
+    else {
+      val start = System.nanoTime
+      try readManyUntimed(xact, keys, out) finally m.record(Metrics.ReadMany, start)
+    }
+  }
+
+  private def readManyUntimed(xact: Long, keys: Array[Int], out: Array[Int]): Unit = {
+    require(out.length >= keys.length, "not enough room for the values")
+
+    val t = getTransaction(xact)
+
+    var i = 0
+    while (i < keys.length) {
+      val key   = keys(i)
+      val value = shardOf(key).storage.readAs(key, t.startTimestamp, xact)
+
+      if (value == Missing) {
+        abort(xact, NoSuchKey)
+        throw NoSuchKeyException(xact, key)
+      }
+
+      out(i) = value.toInt
+      i += 1
+    }
+
+    for { key <- keys } addRead(t, key)
+  }
+
+  // the keys from fromKey until toKey the given xact sees, with their value,
+  // in key order; if xact is invalid, a NoSuchXactException is thrown
+  @throws(classOf[Exception])
+  def scan(xact: Long, fromKey: Int, toKey: Int): java.util.SortedMap[Integer, Integer] = {
+    val pairs = new java.util.TreeMap[Integer, Integer]
+
+    scan(xact, fromKey, toKey, new VersionStore.Visitor {
+      def visit(key: Int, value: Int): Unit = pairs.put(key, value)
+    })
+
+    pairs
+  }
+
+  // same, giving the pairs to visitor one at a time, in key order; visitor
+  // runs without any lock of the store held. committing the xact fails if a
+  // key of the range is written meanwhile, as with a mod query
+  @throws(classOf[Exception])
+  def scan(xact: Long, fromKey: Int, toKey: Int, visitor: VersionStore.Visitor): Unit = {
+    val m = metrics
+    if (m eq null) scanUntimed(xact, fromKey, toKey, visitor)
+    else {
+      val start = System.nanoTime
+      try scanUntimed(xact, fromKey, toKey, visitor) finally m.record(Metrics.Scan, start)
+    }
+  }
+
+  private def scanUntimed(xact: Long, fromKey: Int, toKey: Int, visitor: VersionStore.Visitor): Unit = {
+    val t = getTransaction(xact)
+
+    if (fromKey < toKey) {
+      val keys = keyIndex.subSet(fromKey, true, toKey, false).iterator
+
+      while (keys.hasNext) {
+        val key   = keys.next.intValue
+        val value = shardOf(key).storage.readAs(key, t.startTimestamp, xact)
+
+        if (value != Missing) visitor.visit(key, value.toInt)
+      }
+
+      if (!t.pinned) {
+        t.rangePreds ::= ((fromKey, toKey))
+        if (t.conflicts ne null) predicateReads add new RangeRead(t.conflicts, fromKey, toKey)
       }
     }
   }
@@ -99,26 +378,93 @@ object OMVCC {
   // if xact is invalid, a NoSuchXactException is thrown
   @throws(classOf[Exception])
   def modquery(xact: Long, k: Int): java.util.List[Integer] = {
-    val t = getTransaction(xact)
-
     val l = new java.util.ArrayList[Integer]
 
+    modquery(xact, k, new IntConsumer {
+      def accept(value: Int): Unit = l add value
+    })
+
+    l
+  }
+
+  // same, giving the values to f one at a time as they are found, without
+  // collecting nor boxing them; f runs without any lock of the store held
+  @throws(classOf[Exception])
+  def modquery(xact: Long, k: Int, f: IntConsumer): Unit = {
+    val m = metrics
+    if (m eq null) modqueryUntimed(xact, k, f)
+    else {
+      val start = System.nanoTime
+      try modqueryUntimed(xact, k, f) finally m.record(Metrics.Modquery, start)
+    }
+  }
+
+  private def modqueryUntimed(xact: Long, k: Int, f: IntConsumer): Unit = {
+    val t = getTransaction(xact)
+
     def process(key: Int, value: Int): Unit = {
-      if (value % k == 0) l add value
+      if (value % k == 0) f accept value
     }
 
-    for { key <- storage.keys } {
-      if (t.undoBuffer contains key) {
-        val value = getTemporaryVersion(t, xact, key)
-        process(key, value)
-      } else {
-        getMostRecentReadableVersion(t.startTimestamp, key) foreach { value => process(key, value) }
-      }
+    modIndexes get k match {
+      // only visit the keys that might match: our own uncommitted versions,
+      // and the most recent readable versions of the indexed keys
+      case Some(index) =>
+        t.undoBuffer foreach { (key, ref) => process(key, shardOf(key).storage readOwn ref) }
+
+        index.foreachCandidate(t.startTimestamp) { key =>
+          if (!(t.undoBuffer contains key)) {
+            val value = shardOf(key).storage.readVisible(key, t.startTimestamp)
+            if (value != Missing) process(key, value.toInt)
+          }
+        }
+
+      // our own uncommitted versions, or else the most recent readable ones;
+      // ranges of segments are resolved in parallel on large stores, reading
+      // from the snapshot only, and the matches are given to f from here
+      case None if size >= parallelThreshold =>
+        val segments = Shard.Count * Shard.SegmentsPerShard
+        val matches  = ForkJoinPool.commonPool invoke new ModqueryTask(t.startTimestamp, xact, k, 0, segments)
+        for { value <- matches } f accept value
+
+      case None =>
+        for { shard <- shards } shard.storage.scan(t.startTimestamp, xact, new VersionStore.Visitor {
+          def visit(key: Int, value: Int): Unit = process(key, value)
+        })
     }
 
-    t.modqueryPreds += k
+    if (!t.pinned && t.modqueryPreds.add(k) && (t.conflicts ne null)) predicateReads add new ModqueryRead(t.conflicts, k)
+  }
 
-    l
+  // make modquery scan stores of at least that many keys in parallel, when
+  // its modulus is not registered
+  def setParallelThreshold(keys: Int): Unit = {
+    require(keys >= 0, "negative threshold")
+    parallelThreshold = keys
+  }
+
+  // choose how commit makes xacts serializable; meant to be called at
+  // startup, before any xact runs:
+  //  - SnapshotValidation, the default: commit fails if a key the xact read
+  //    was written since it started, or the result of one of its mod
+  //    queries or scans changed
+  //  - SerializableSnapshot: xacts track their rw-antidependencies with the
+  //    concurrent ones, and commit fails only for an xact that would make a
+  //    cycle of them possible, see Conflicts. xacts begun with beginReadOnly
+  //    track nothing: they see a consistent snapshot, which might not fit in
+  //    the serial order of the others
+  def setIsolation(level: Int): Unit = {
+    require(level == SnapshotValidation || level == SerializableSnapshot, "unknown isolation level")
+    isolation = level
+  }
+
+  // make write wait up to millis for the xact owning an uncommitted version
+  // of the key to roll back, rather than failing at once; 0, the default,
+  // never waits. to rule out deadlocks, waits follow wait-die: only an xact
+  // older than the owner (with a smaller id) waits, a younger one fails
+  def setWriteWait(millis: Long): Unit = {
+    require(millis >= 0, "negative wait")
+    writeWaitNanos = TimeUnit.MILLISECONDS toNanos millis
   }
 
   // update the value of an existing object identified by key
@@ -126,46 +472,62 @@ object OMVCC {
   // if xact is invalid, a NoSuchXactException is thrown;
   // writing fails when:
   //  - attempting to update a value with an uncommitted version
-  //    from another transaction, or
+  //    from another transaction (unless waiting for it to roll back, see
+  //    setWriteWait), or
   //  - a version was committed after the start of the given xact
   // if so, the xact is aborted before throwing a BadWriteException
   @throws(classOf[Exception])
   def write(xact: Long, key: Int, value: Int) {
+    val m = metrics
+    if (m eq null) writeUntimed(xact, key, value)
+    else {
+      val start = System.nanoTime
+      try writeUntimed(xact, key, value) finally m.record(Metrics.Write, start)
+    }
+  }
+
+  private def writeUntimed(xact: Long, key: Int, value: Int): Unit = {
     val t = getTransaction(xact)
 
-    def abort(): Nothing = {
-      rollback(xact)
-      throw BadWriteException(xact, key, value)
+    if (t.pinned) {
+      abort(xact, ReadOnlyWrite)
+      throw BadWriteException(xact, key, value, ReadOnlyWrite)
     }
 
-    @tailrec
-    def rec(versions: List[Version], acc: List[Version]): List[Version] = versions match {
-      // If no other version exists, we insert a new one
-      case Nil =>
-        TemporaryVersion(value, xact) :: acc
+    // we either insert a new version, or override our previous uncommitted one;
+    // if an uncommitted version exists from some other xact, or if there is
+    // a committed version with a more recent timestamp, we abort
+    val storage = shardOf(key).storage
+    var outcome = storage.write(key, value, xact, t.startTimestamp)
 
-      // If there is a prevsiously uncommitted version from us, we override it
-      case TemporaryVersion(_, owner) :: vs if owner == xact =>
-        rec(vs, TemporaryVersion(value, xact) :: acc)
+    if (outcome > VersionStore.OwnerBase && writeWaitNanos > 0) {
+      val deadline = System.nanoTime + writeWaitNanos
 
-      // If an uncommitted version exists from some other xact, we abort
-      case TemporaryVersion(_, _) :: _ =>
-        abort()
-
-      // If there is a committed version with a more recent timestamp, we abort
-      case CommittedVersion(_, timestamp) :: _ if timestamp > t.startTimestamp =>
-        abort()
+      // the owner is gone once its versions are installed, which makes us
+      // fail as well, or discarded, which lets us write
+      while (outcome > VersionStore.OwnerBase && outcome > xact && awaitOver(outcome, deadline))
+        outcome = storage.write(key, value, xact, t.startTimestamp)
+    }
 
-      // Otherwise we recurse
-      case (v: CommittedVersion) :: vs =>
-        rec(vs, v :: acc)
+    if (!VersionStore.isVersion(outcome)) {
+      abort(xact, WriteConflict)
+      throw BadWriteException(xact, key, value, WriteConflict)
     }
 
-    val versions    = storage(key)
-    val newVersions = rec(versions, Nil) // might abort in there
+    t.undoBuffer(key) = outcome
+  }
+
+  // wait until the given xact is over, or the deadline (a System.nanoTime)
+  // is past; return whether it is over
+  private def awaitOver(xact: Long, deadline: Long): Boolean = {
+    val t = xacts lookup xact
 
-    storage += key -> newVersions
-    t.undoBuffer += key
+    try { (t eq null) || t.over.await(deadline - System.nanoTime, TimeUnit.NANOSECONDS) }
+    catch {
+      case _: InterruptedException =>
+        Thread.currentThread.interrupt()
+        false
+    }
   }
 
   // attempt to commit the given xact;
@@ -173,6 +535,15 @@ object OMVCC {
   // on failures, the xact is aborted and a BadCommitException is thrown
   @throws(classOf[Exception])
   def commit(xact: Long) {
+    val m = metrics
+    if (m eq null) commitUntimed(xact)
+    else {
+      val start = System.nanoTime
+      try commitUntimed(xact) finally m.record(Metrics.Commit, start)
+    }
+  }
+
+  private def commitUntimed(xact: Long): Unit = {
     // (1) either the transaction has no write operation (read-only) and
     //     no validation is required
     // (2) or it has at least one write operation and
@@ -180,38 +551,98 @@ object OMVCC {
 
     val t = getTransaction(xact)
 
-    val isValid =
-      if (t.isReadOnly) true
-      else {
-        val potentialConflicts = commits filter { x => x.commitTimestamp > t.startTimestamp }
-
-        val readsBad = potentialConflicts exists { x => !(x.undoBuffer & t.readPreds).isEmpty }
-
-        val modqueryBad = potentialConflicts exists { x =>
-          t.modqueryPreds exists { modulus =>
-            val newValueMatches = x.undoBuffer exists { key =>
-              val pcv = findVersion(x.commitTimestamp, key) // potentially conflicing value
-              pcv % modulus == 0
-            }
+    // (1) has nothing to install, so it does not enter the critical section
+    // (2) is validated and installed by one xact at a time among those
+    //     touching the same shards
+    //     (in SerializableSnapshot mode, a read-only xact is validated too)
+    val conflict =
+      if (t.isReadOnly && (t.conflicts eq null)) {
+        commitReadOnly(xact, t)
+        NoConflict
+      } else {
+        var conflict = NoConflict
 
-            val previousValueMatches = x.undoBuffer exists { key =>
-              getMostRecentReadableVersion(x.commitTimestamp, key) exists { pcv => pcv % modulus == 0 }
-            }
+        val lsn = locked(shardsOf(t)) {
+          val record = if (t.isReadOnly) null else prepare(t)
+          conflict = conflictOf(t, record, Nil)
 
-            newValueMatches || previousValueMatches
-          }
+          if (conflict != NoConflict) Rejected
+          else if (record eq null) {
+            commitReadOnly(xact, t)
+            NotLogged
+          } else validate(Seq(Pending(xact, t, record)))
         }
 
-        !(readsBad || modqueryBad)
+        awaitDurable(lsn)
+        conflict
       }
 
-    if (isValid) {
-      startAndCommitTimestampGen += 1 // SHOULD BE USED
-      validate(xact, startAndCommitTimestampGen)
+    if (conflict != NoConflict) {
+      abort(xact, conflict)
+      throw BadCommitException(xact, conflict)
     } else {
-      rollback(xact)
-      throw BadCommitException(xact)
+      pruneReads(t)
+
+      val m = metrics
+      if (m ne null) m committed 1
+    }
+  }
+
+  // attempt to commit the given xacts as a group, validating them together
+  // and giving consecutive commit timestamps to those that pass, in order;
+  // return the outcome of each xact instead of throwing: Committed, Aborted
+  // (the xact was rolled back) or NoSuchXact (also for repeated xacts)
+  def commitBatch(batch: Array[Long]): Array[Int] = {
+    val outcomes = Array.fill(batch.length)(NoSuchXact)
+    val reasons  = Array.fill(batch.length)(NoConflict)
+    val seen     = MutableSet[Long]()
+    val writers  = scala.collection.mutable.ArrayBuffer[(Int, Long, Transaction)]() // and SSI readers
+
+    for { (xact, i) <- batch.zipWithIndex if seen add xact } {
+      val t = xacts lookup xact
+
+      if (t eq null) ()
+      else if (t.isReadOnly && (t.conflicts eq null)) {
+        commitReadOnly(xact, t)
+        outcomes(i) = Committed
+      } else writers += ((i, xact, t))
+    }
+
+    val touched = (writers foldLeft 0) { case (mask, (_, _, t)) => mask | shardsOf(t) }
+
+    val lsn = locked(touched) {
+      // each xact must pass the checks of commit against the commits that
+      // happened since it started, and against the members accepted before
+      // it, which are about to commit after it started
+      val accepted = scala.collection.mutable.ArrayBuffer[Pending]()
+
+      for { (i, xact, t) <- writers } {
+        val record = if (t.isReadOnly) null else prepare(t)
+        reasons(i) = conflictOf(t, record, accepted map { _.record })
+
+        if (reasons(i) == NoConflict) {
+          if (record eq null) commitReadOnly(xact, t) else accepted += Pending(xact, t, record)
+          outcomes(i) = Committed
+        }
+      }
+
+      validate(accepted)
     }
+
+    awaitDurable(lsn)
+
+    for { (i, xact, t) <- writers } {
+      if (outcomes(i) == Committed) pruneReads(t)
+      else {
+        abort(xact, reasons(i))
+        outcomes(i) = Aborted
+      }
+    }
+
+    val m = metrics
+    if (m ne null) m committed (outcomes count { _ == Committed })
+
+    outcomes
   }
 
   // remove any write pending validation emitted by the given xact
@@ -220,84 +651,547 @@ object OMVCC {
   def rollback(xact: Long) {
     val t = getTransaction(xact)
 
-    for { key <- t.undoBuffer } {
-      val versions = storage(key) filter {
-        case TemporaryVersion(_, owner) if owner == xact => false
-        case _                                           => true
+    t.undoBuffer foreach { (key, ref) => shardOf(key).storage.discard(key, ref) }
+
+    xacts -= xact
+    if (!t.pinned) t.over.countDown()
+    if (t.conflicts ne null) t.conflicts.aborted = true
+
+    pruneReads(t)
+  }
+
+  // abort xact, refused for the given reason
+  private def abort(xact: Long, reason: Int): Unit = {
+    rollback(xact)
+
+    val m = metrics
+    if (m ne null) m aborted reason
+  }
+
+  // replay the commits recorded in the redo log at path, if any, and record
+  // the next ones there, with the given RedoLog durability mode; meant to be
+  // called at startup, before any xact runs
+  def openRedoLog(path: String, durability: Int): Unit = openRedoLog(path, durability, null)
+
+  // same, starting from the checkpoint at checkpointPath, if any, so that
+  // only the commits logged after it are replayed
+  def openRedoLog(path: String, durability: Int, checkpointPath: String): Unit = locked(Shard.All) {
+    require(redoLog == null, "a redo log is already open")
+
+    val image = if (checkpointPath == null) null else Checkpoint.map(checkpointPath)
+    val from  = if (image == null) 0L else image.logPosition
+    val after = if (image == null) 0L else image.timestamp
+
+    // the commits of the checkpoint all happened before its snapshot
+    if (image != null) for { i <- 0 until image.size } restore(image.key(i), image.value(i), after - 1)
+
+    redoLog = RedoLog.open(path, durability, from = from) { (commitTimestamp, keys, values) =>
+      if (commitTimestamp >= after) for { i <- keys.indices } restore(keys(i), values(i), commitTimestamp)
+    }
+  }
+
+  // force the commits recorded so far to disk and stop recording them
+  def closeRedoLog(): Unit = locked(Shard.All) {
+    if (redoLog != null) {
+      redoLog.close()
+      redoLog = null
+    }
+  }
+
+  // ship the current state of the store, then every commit, to a Follower
+  // through transport; commits are held up while the state is collected.
+  // the follower is detached as soon as sending to it fails, e.g. once it
+  // is closed
+  def addFollower(transport: Transport): Unit = locked(Shard.All) {
+    // the commits that drew their timestamp are all installed
+    val timestamp = startAndCommitTimestampGen.get
+    val keys      = scala.collection.mutable.ArrayBuilder.make[Int]
+    val values    = scala.collection.mutable.ArrayBuilder.make[Int]
+
+    for { shard <- shards } shard.storage.scan(timestamp + 1, -1, new VersionStore.Visitor {
+      def visit(key: Int, value: Int): Unit = {
+        keys   += key
+        values += value
       }
+    })
 
-      storage += key -> versions
+    val shipper = new Shipper(transport, detach)
+    shipper ship new WriteSet(timestamp, keys.result, values.result, System.currentTimeMillis)
+
+    shipLock.synchronized { followers :+= shipper }
+  }
+
+  // stop shipping commits through transport, once the ones shipped so far
+  // are sent, and close it
+  def removeFollower(transport: Transport): Unit = {
+    val removed = shipLock.synchronized {
+      val (removed, kept) = followers partition { _.transport eq transport }
+      followers = kept
+      removed
     }
 
-    xacts -= xact
+    if (removed.isEmpty) transport.close() // detached already, or never added
+    for { shipper <- removed } shipper.close()
+  }
+
+  // called by a shipper whose transport failed
+  private val detach = (shipper: Shipper) => shipLock.synchronized {
+    followers = followers filterNot { _ eq shipper }
+  }
+
+  // write the most recent committed value of every key to a Checkpoint at
+  // path, from a snapshot, so that writers are not held up; return the
+  // timestamp of the snapshot
+  def checkpoint(path: String): Long = checkpointLock.synchronized {
+    // the commits logged from now on draw their timestamps after this point,
+    // thus the log records before it are all older than the snapshot
+    val (log, logPosition) = locked(Shard.All) { (redoLog, if (redoLog == null) 0L else redoLog.position) }
+
+    val xact  = begin
+    val t     = getTransaction(xact)
+    val pairs = scala.collection.mutable.ArrayBuilder.make[Long]
+
+    for { shard <- shards } shard.storage.scan(t.startTimestamp, xact, new VersionStore.Visitor {
+      def visit(key: Int, value: Int): Unit = pairs += (key.toLong << 32) | (value & 0xFFFFFFFFL)
+    })
+
+    commit(xact)
+
+    // recovery replays the log from logPosition on, which must not be lost
+    // in a crash once the checkpoint is in place
+    if (log != null) log force logPosition
+
+    Checkpoint.write(path, t.startTimestamp, logPosition, pairs.result)
+    t.startTimestamp
+  }
+
+  // run checkpoint(path) every periodMillis on a background thread
+  def startCheckpointer(path: String, periodMillis: Long): Unit = checkpointLock.synchronized {
+    if (checkpointer == null) {
+      checkpointer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory {
+        def newThread(r: Runnable) = {
+          val thread = new Thread(r, "OMVCC-checkpoint")
+          thread setDaemon true
+          thread
+        }
+      })
+
+      checkpointer.scheduleWithFixedDelay(new Runnable {
+        def run(): Unit = checkpoint(path)
+      }, periodMillis, periodMillis, TimeUnit.MILLISECONDS)
+    }
+  }
+
+  def stopCheckpointer(): Unit = checkpointLock.synchronized {
+    if (checkpointer != null) {
+      checkpointer.shutdown()
+      checkpointer = null
+    }
+  }
+
+  // maintain an index of the keys whose values are divisible by k, making
+  // modquery(_, k) visit only those instead of every key of the store
+  def registerModulus(k: Int): Unit = locked(Shard.All) {
+    if (!(modIndexes contains k)) {
+      // no xact can commit meanwhile, and those committing later will find
+      // the new index in validate
+      val index = new ModIndex(k)
+      for { shard <- shards } shard.storage foreachVersion { (key, value) => if (index matches value) index.add(key, 0) }
+      modIndexes += k -> index
+    }
+  }
+
+  def unregisterModulus(k: Int): Unit = locked(Shard.All) {
+    modIndexes -= k
+  }
+
+  // drop the versions and the commit records that neither running nor future
+  // xacts can observe any more, and return what was reclaimed
+  def collectGarbage(): GarbageCollection = gcLock.synchronized {
+    val lowWater = oldestSnapshot
+
+    val versions = (shards foldLeft 0L) { _ + _.storage.collect(lowWater) }
+
+    // a commit conflicts with xacts that started before it, and they all
+    // started at lowWater or later; a record is kept by every shard it
+    // wrote to, and counted for the shard of its first key
+    val obsolete = for {
+      (shard, i) <- shards.toSeq.zipWithIndex
+      record     <- locked(1 << i) { shard.commits prune lowWater }
+      if Shard.indexOf(record.keys(0)) == i
+    } yield record
+
+    // keys left with no divisible version; the lock of their shard keeps
+    // validate from indexing a new version of them behind our back
+    for { index <- modIndexes.values } index foreachKey { key =>
+      locked(Shard maskOf key) {
+        if (!shardOf(key).storage.exists(key)(index.matches)) index remove key
+      }
+    }
+
+    for { shard <- shards } shard pruneReaders { readOver(_, lowWater) }
+
+    val reads = predicateReads.iterator
+    while (reads.hasNext) if (readOver(reads.next.reader, lowWater)) reads.remove()
+
+    val bytes = versions * VersionStore.VersionBytes + (obsolete map { _.bytes }).sum
+    val gc    = GarbageCollection(versions, obsolete.size, bytes)
+
+    reclaimed += gc
+    gc
+  }
+
+  // run collectGarbage every periodMillis on a background thread
+  def startGarbageCollector(periodMillis: Long): Unit = gcLock.synchronized {
+    if (collector == null) {
+      collector = Executors.newSingleThreadScheduledExecutor(new ThreadFactory {
+        def newThread(r: Runnable) = {
+          val thread = new Thread(r, "OMVCC-gc")
+          thread setDaemon true
+          thread
+        }
+      })
+
+      collector.scheduleWithFixedDelay(new Runnable {
+        def run(): Unit = collectGarbage()
+      }, periodMillis, periodMillis, TimeUnit.MILLISECONDS)
+    }
+  }
+
+  def stopGarbageCollector(): Unit = gcLock.synchronized {
+    if (collector != null) {
+      collector.shutdown()
+      collector = null
+    }
+  }
+
+  // everything reclaimed so far, by hand or in the background
+  def garbageCollected: GarbageCollection = reclaimed
+
+  // start measuring the operations, counting from zero: see Metrics. they
+  // are also published over JMX, as the MBean named Metrics.MBeanName
+  def enableMetrics(): Unit = metricsLock.synchronized {
+    if (metrics == null) {
+      val m = new Metrics(() => xacts.size, { chains =>
+        for { shard <- shards } shard.storage foreachChainLength { length => chains record length }
+      })
+
+      ManagementFactory.getPlatformMBeanServer.registerMBean(new Metrics.MBean(m), new ObjectName(Metrics.MBeanName))
+      metrics = m
+    }
+  }
+
+  def disableMetrics(): Unit = metricsLock.synchronized {
+    if (metrics != null) {
+      ManagementFactory.getPlatformMBeanServer.unregisterMBean(new ObjectName(Metrics.MBeanName))
+      metrics = null
+    }
+  }
+
+  // the current metrics, by name, or none if they are not enabled
+  def metricsSnapshot: java.util.Map[String, java.lang.Long] = {
+    val m = metrics
+    if (m eq null) java.util.Collections.emptyMap[String, java.lang.Long] else m.snapshot
+  }
+
+  // the oldest snapshot a running or future xact can read from: xacts are
+  // registered with a lower bound of their start timestamp before drawing
+  // it, so those not registered yet will start after the current timestamp
+  private def oldestSnapshot: Long = {
+    val bound = startAndCommitTimestampGen.get + 1
+    (xacts.valuesIterator foldLeft bound) { (low, x) => low min x.startTimestamp }
   }
 
+  // recover a committed version, at startup
+  private def restore(key: Int, value: Int, commitTimestamp: Long): Unit = {
+    shardOf(key).storage.restore(key, value, commitTimestamp)
+    for { index <- modIndexes.values if index matches value } index.add(key, 0)
+
+    if (startAndCommitTimestampGen.get < commitTimestamp) startAndCommitTimestampGen set commitTimestamp
+  }
+
+  private def shardOf(key: Int): Shard = shards(Shard indexOf key)
+
+  // the shards t must be validated and installed in: those of the keys it
+  // read, scanned or wrote, or all of them if it ran a mod query
+  private def shardsOf(t: Transaction): Int =
+    if (t.modqueryPreds.nonEmpty) Shard.All
+    else {
+      val scanned = (t.rangePreds foldLeft 0) { case (mask, (from, until)) => mask | Shard.maskOf(from, until) }
+      var mask = (t.readPreds foldLeft scanned) { _ | Shard.maskOf(_) }
+      t.undoBuffer foreach { (key, _) => mask |= Shard.maskOf(key) }
+      mask
+    }
+
+  // run body with the given shards locked, taking their locks in index order
+  private def locked[A](mask: Int)(body: => A): A = {
+    for { i <- shards.indices if (mask & (1 << i)) != 0 } shards(i).lock.lock()
+    try body
+    finally for { i <- shards.indices.reverse if (mask & (1 << i)) != 0 } shards(i).lock.unlock()
+  }
+
+  // number of keys, as of some recent point
+  private def size: Int = (shards foldLeft 0) { _ + _.storage.size }
+
+  // note that t read key, unless it is pinned
+  private def addRead(t: Transaction, key: Int): Unit =
+    if (!t.pinned && t.readPreds.add(key) && (t.conflicts ne null)) shardOf(key).addReader(key, t.conflicts)
+
   // return the Transaction corresponding to the given xact if any,
   // throw a NoSuchXactException if none exists
   private def getTransaction(xact: Long): Transaction =
     xacts get xact getOrElse { throw NoSuchXactException(xact) }
 
-  // assuming the given transaction passes the checks in commit,
-  // transform the uncommitted versions of any written value into
-  // durable committed values
-  private def validate(xact: Long, commitTimestamp: Long): Unit = {
-    val t = getTransaction(xact)
+  // whether no running or future xact can supersede concurrently what
+  // reader read any more, the oldest snapshot being lowWater
+  private def readOver(reader: Conflicts, lowWater: Long): Boolean =
+    reader.aborted || (reader.commitTimestamp >= 0 && reader.commitTimestamp < lowWater)
+
+  // once t is over, in SerializableSnapshot mode: forget the reads over
+  // among those registered on the keys it read, and at the head of the
+  // predicate reads, which are registered in roughly the order the xacts
+  // end; collectGarbage prunes the others
+  private def pruneReads(t: Transaction): Unit = if (t.conflicts ne null) {
+    val lowWater = oldestSnapshot
+    val over     = (reader: Conflicts) => readOver(reader, lowWater)
+
+    for { key <- t.readPreds } shardOf(key).pruneReadersOf(key, over)
+
+    // removed by identity, in case another xact got to it first
+    var head = predicateReads.peek
+    while ((head ne null) && over(head.reader)) {
+      predicateReads remove head
+      head = predicateReads.peek
+    }
+  }
 
-    @tailrec
-    def rec(versions: List[Version], acc: List[Version]): List[Version] = versions match {
-      case TemporaryVersion(value, owner) :: vs if owner == xact =>
-        val newV = CommittedVersion(value, commitTimestamp)
-        rec(vs, newV :: acc)
+  // a read-only xact has nothing to validate nor install; it only draws a
+  // commit timestamp in SerializableSnapshot mode, where it tells the
+  // writers that find its reads whether it was concurrent with them
+  private def commitReadOnly(xact: Long, t: Transaction): Unit = {
+    if (t.conflicts ne null) {
+      t.commitTimestamp           = startAndCommitTimestampGen.incrementAndGet()
+      t.conflicts.commitTimestamp = t.commitTimestamp
+    }
+    xacts -= xact
+  }
 
-      case Nil     => acc
-      case v :: vs => rec(vs, v :: acc)
+  // why t fails the checks of commit, if it does, given the record of what
+  // it is about to commit, if it writes: only the commits that happened
+  // since it started can conflict with it, as well as the given ones that
+  // are about to commit; must be called with the shards of t locked
+  private def conflictOf(t: Transaction, record: CommitRecord, pending: Seq[CommitRecord]): Int =
+    if (t.conflicts ne null) rwConflictOf(t, record, pending)
+    else staleReadOf(t, pending)
+
+  // in SnapshotValidation mode: what t read must not have changed since
+  private def staleReadOf(t: Transaction, pending: Seq[CommitRecord]): Int = {
+    // a key we read was written since
+    val readsBad = t.readPreds exists { key =>
+      shardOf(key).commits.lastCommitOf(key) > t.startTimestamp || (pending exists { _.keys contains key })
     }
 
-    for { key <- t.undoBuffer } {
-      val versions    = storage(key)
-      val newVersions = rec(versions, Nil)
+    // the result of one of our mod queries is not the same any more
+    val modqueryBad = t.modqueryPreds exists { k => changesModquery(t.startTimestamp, k, pending) }
 
-      storage += key -> newVersions
-    }
+    // a key in the range of one of our scans was written since
+    val rangesBad = t.rangePreds exists { case (from, until) =>
+      def inRange(x: CommitRecord) = x.keys exists { key => key >= from && key < until }
 
-    xacts -= xact
-    commits += t
+      var written = pending exists inRange
+      val mask    = Shard.maskOf(from, until)
+
+      for { i <- shards.indices if !written && (mask & (1 << i)) != 0 }
+        shards(i).commits.foreachAfter(t.startTimestamp) { x => written ||= inRange(x) }
 
-    t.commitTimestamp = commitTimestamp
+      written
+    }
+
+    if (readsBad) ReadConflict
+    else if (modqueryBad || rangesBad) Phantom
+    else NoConflict
   }
 
-  // read the most recent and visible version that was committed before the
-  // given `before` timestamp, if any
-  private def getMostRecentReadableVersion(before: Long, key: Int): Option[Int] = {
-    val vals = storage(key) collect {
-      case CommittedVersion(value, ts) if ts < before => (value, ts)
-    } sortBy { _._2 }
+  // in SerializableSnapshot mode: record the rw-antidependencies from t to
+  // the concurrent xacts that superseded what it read, and from those that
+  // read what it is about to supersede to t; fail if t, or one of them that
+  // committed already, would be a pivot
+  private def rwConflictOf(t: Transaction, record: CommitRecord, pending: Seq[CommitRecord]): Int = {
+    val c    = t.conflicts
+    var safe = true
+
+    def add(reader: Conflicts, writer: Conflicts): Unit = if (safe) safe = Conflicts.add(reader, writer)
+
+    // the writer of x comes after us
+    def superseded(x: CommitRecord) =
+      (x.conflicts ne null) &&
+        ((x.keys exists t.readPreds) ||
+          (t.modqueryPreds exists x.touchesMultipleOf) ||
+          (t.rangePreds exists { case (from, until) => x.keys exists { key => key >= from && key < until } }))
+
+    val mask = shardsOf(t)
+    for { i <- shards.indices if (mask & (1 << i)) != 0 }
+      shards(i).commits.foreachAfter(t.startTimestamp) { x => if (superseded(x)) add(c, x.conflicts) }
+
+    for { x <- pending if superseded(x) } add(c, x.conflicts)
+
+    // the readers of what we supersede come before us, unless they
+    // committed before we started
+    def concurrent(reader: Conflicts) =
+      (reader ne c) && !reader.aborted && (reader.commitTimestamp < 0 || reader.commitTimestamp > t.startTimestamp)
+
+    if (record ne null) {
+      for { key <- record.keys; reader <- shardOf(key) readersOf key if concurrent(reader) } add(reader, c)
+
+      val reads = predicateReads.iterator
+      while (reads.hasNext) {
+        val read = reads.next
+        if (concurrent(read.reader) && (read affectedBy record)) add(read.reader, c)
+      }
+    }
 
-    // the more recent value is at the end
-    vals.lastOption map { _._1 }
+    if (safe && c.commitUnlessPivot()) NoConflict else Dangerous
   }
 
-  // here we assume key is in the undoBuffer of t
-  private def getTemporaryVersion(t: Transaction, xact: Long, key: Int): Int = {
-    require(t.undoBuffer contains key)
+  // whether the commits after the given snapshot, and the given ones that
+  // are about to commit, change the result of a mod query on k from it: the
+  // multiset of the values divisible by k they wrote differs from the one of
+  // those they overwrote, as seen by the snapshot. a key written several
+  // times counts with its value before the first write and after the last;
+  // commits with no value divisible by k cannot change anything, and are
+  // skipped. must be called with every shard locked
+  private def changesModquery(snapshot: Long, k: Int, pending: Seq[CommitRecord]): Boolean = {
+    val seen    = scala.collection.mutable.HashMap[Int, Long]() // or Missing
+    val current = scala.collection.mutable.HashMap[Int, Int]()
+
+    // a commit is logged by every shard it wrote, and the commits of a key
+    // are replayed from the log of its own shard, in timestamp order
+    def replay(record: CommitRecord, shard: Int): Unit =
+      if (record touchesMultipleOf k) for { i <- record.keys.indices } {
+        val key = record.keys(i)
+
+        if (shard < 0 || Shard.indexOf(key) == shard) {
+          if (!(seen contains key)) seen(key) = record.previousValues(i)
+          current(key) = record.values(i)
+        }
+      }
 
-    val opt = storage(key) collectFirst {
-      case TemporaryVersion(value, owner) if owner == xact => value
+    for { (shard, i) <- shards.zipWithIndex } shard.commits.foreachAfter(snapshot) { replay(_, i) }
+    for { record <- pending } replay(record, -1)
+
+    // +1 for a divisible value written, -1 for one overwritten
+    val balance = scala.collection.mutable.HashMap[Int, Int]() withDefaultValue 0
+
+    for { (key, value) <- current } {
+      val previous = seen(key)
+
+      if (previous != Missing && previous.toInt % k == 0) balance(previous.toInt) -= 1
+      if (value % k == 0) balance(value) += 1
     }
 
-    // the write operation *must* have added a TemporaryVersion into the storage
-    assert(opt.isDefined)
-    opt.get
+    balance.values exists { _ != 0 }
   }
 
-  // Find the value associated with the given key and committed at the given time
-  private def findVersion(commitTimestamp: Long, key: Int): Int = {
-    val opt = storage(key) collectFirst {
-      case CommittedVersion(value, ts) if ts == commitTimestamp => value
+  // the record of what t is about to commit; must be called with the shards
+  // of t locked, so that the values it supersedes stay the most recent ones
+  private def prepare(t: Transaction): CommitRecord = {
+    val keys           = new Array[Int](t.undoBuffer.size)
+    val values         = new Array[Int](keys.length)
+    val previousValues = new Array[Long](keys.length)
+    var i              = 0
+
+    t.undoBuffer foreach { (key, ref) =>
+      val storage = shardOf(key).storage
+      keys(i)           = key
+      values(i)         = storage readOwn ref
+      previousValues(i) = storage readPrevious ref
+      i += 1
     }
 
-    assert(opt.isDefined)
-    opt.get
+    val record = new CommitRecord(keys, values, previousValues)
+    record.conflicts = t.conflicts
+    record
+  }
+
+  // assuming the given transactions pass the checks in commit,
+  // transform the uncommitted versions of any written value into
+  // durable committed values, with consecutive commit timestamps;
+  // must be called with the shards of the group locked. return the log
+  // sequence number of the last redo record, to be given to awaitDurable
+  private def validate(group: Seq[Pending]): Long = {
+    // index the new divisible values before anyone can see them, stamped
+    // with a timestamp older than the ones we are about to draw
+    for {
+      Pending(_, _, record) <- group
+      index                 <- modIndexes.values
+      i                     <- record.keys.indices
+      if index matches record.values(i)
+    } index.add(record.keys(i), startAndCommitTimestampGen.get)
+
+    // publish the timestamps before installing anything: from then on,
+    // readers whose snapshot is more recent consider the temporary versions
+    // of the group as committed. the ones meeting them while they are being
+    // drawn wait for them, since they might end up older than their snapshot
+    for { Pending(_, t, _) <- group } t.commitTimestamp = DrawingTimestamp
+
+    def publish(first: Long): Unit =
+      for { (Pending(_, t, record), i) <- group.zipWithIndex } {
+        t.commitTimestamp      = first + i
+        record.commitTimestamp = first + i
+        if (t.conflicts ne null) t.conflicts.commitTimestamp = first + i
+      }
+
+    // followers must receive the commits in timestamp order: with some
+    // attached, timestamps are drawn and the write sets queued for their
+    // shippers in one critical section; the shippers send them from there
+    if (followers.isEmpty) publish(startAndCommitTimestampGen.getAndAdd(group.size) + 1) // SHOULD BE USED
+    else shipLock.synchronized {
+      val first = startAndCommitTimestampGen.getAndAdd(group.size) + 1
+      val now   = System.currentTimeMillis
+
+      publish(first)
+
+      for {
+        (Pending(_, _, record), i) <- group.zipWithIndex
+        shipper                    <- followers
+      } shipper ship new WriteSet(first + i, record.keys, record.values, now)
+    }
+
+    // log the commits ahead of installing them, in timestamp order among
+    // those writing the same keys
+    val log = redoLog
+    var lsn = NotLogged
+
+    for { Pending(xact, t, record) <- group } {
+      if (log != null) lsn = log.append(record.commitTimestamp, record.keys, record.values)
+
+      t.undoBuffer foreach { (key, ref) => shardOf(key).storage.install(ref, record.commitTimestamp) }
+
+      xacts -= xact
+      t.over.countDown()
+
+      val written = (record.keys foldLeft 0) { _ | Shard.maskOf(_) }
+      for { i <- shards.indices if (written & (1 << i)) != 0 } shards(i).commits append record
+    }
+
+    lsn
+  }
+
+  // wait for the redo record with the given log sequence number, if any, to
+  // be durable; called once the shards are unlocked so that commits pile up
+  // meanwhile and get forced to disk together
+  private def awaitDurable(lsn: Long): Unit = {
+    val log = redoLog
+    if (log != null && lsn >= 0) log awaitDurable lsn
+  }
+
+  // here we assume key is in the undoBuffer of t
+  private def getTemporaryVersion(t: Transaction, key: Int): Int = {
+    val ref = t.undoBuffer.getOrElse(key, VersionStore.Stale)
+
+    // the write operation *must* have added an uncommitted version into the storage
+    require(VersionStore.isVersion(ref))
+    shardOf(key).storage readOwn ref
   }
 }
 
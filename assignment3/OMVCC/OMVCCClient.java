@@ -0,0 +1,179 @@
+import java.io.*;
+import java.net.Socket;
+
+/**
+ *  A session with a Server, over a connection of its own (see Protocol).
+ *  Not thread-safe: every thread should have its own client.
+ *
+ *  Every operation comes in two forms: a blocking one, like read, which
+ *  sends its request and waits for the reply, and a pipelined one, like
+ *  sendRead, which only buffers the request. Its reply is taken later by
+ *  the matching await, like awaitRead; replies must be awaited in the
+ *  order the requests were sent. The first await flushes the requests
+ *  buffered so far. The server answers while requests keep coming: send no
+ *  more of them ahead than the socket buffers can hold replies for (some
+ *  thousands), or both ends end up blocked writing.
+ *
+ *  An operation the store refuses throws an AbortedException, giving the
+ *  reason the xact was aborted for, or a NoSuchXactException.
+ */
+public class OMVCCClient implements Closeable {
+    private static final int BUFFER_SIZE = 8192;
+
+    private final Socket socket;
+    private final DataInputStream in;
+    private final DataOutputStream out;
+
+    private int pending;       // requests sent, whose reply was not awaited yet
+    private boolean unflushed; // requests buffered since the last flush
+
+    /**
+     *  The store refused an operation, and aborted the xact.
+     */
+    public static class AbortedException extends Exception {
+        public final int reason; // see OMVCC.NoSuchKey and the following
+
+        AbortedException(int reason) {
+            super("xact aborted, reason " + reason);
+            this.reason = reason;
+        }
+    }
+
+    /**
+     *  The xact is unknown to the store, or over.
+     */
+    public static class NoSuchXactException extends Exception {
+        NoSuchXactException() {
+            super("no such xact");
+        }
+    }
+
+    public OMVCCClient(String host, int port) throws IOException {
+        socket = new Socket(host, port);
+        socket.setTcpNoDelay(true);
+        in  = new DataInputStream(new BufferedInputStream(socket.getInputStream(), BUFFER_SIZE));
+        out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE));
+    }
+
+    public long begin() throws IOException, AbortedException, NoSuchXactException {
+        sendBegin();
+        return awaitBegin();
+    }
+
+    public int read(long xact, int key) throws IOException, AbortedException, NoSuchXactException {
+        sendRead(xact, key);
+        return awaitRead();
+    }
+
+    public void write(long xact, int key, int value) throws IOException, AbortedException, NoSuchXactException {
+        sendWrite(xact, key, value);
+        await();
+    }
+
+    public int[] modquery(long xact, int k) throws IOException, AbortedException, NoSuchXactException {
+        sendModquery(xact, k);
+        return awaitModquery();
+    }
+
+    public void commit(long xact) throws IOException, AbortedException, NoSuchXactException {
+        sendCommit(xact);
+        await();
+    }
+
+    public void rollback(long xact) throws IOException, AbortedException, NoSuchXactException {
+        sendRollback(xact);
+        await();
+    }
+
+    public void sendBegin() throws IOException {
+        request(Protocol.BEGIN);
+    }
+
+    public void sendRead(long xact, int key) throws IOException {
+        request(Protocol.READ);
+        out.writeLong(xact);
+        out.writeInt(key);
+    }
+
+    public void sendWrite(long xact, int key, int value) throws IOException {
+        request(Protocol.WRITE);
+        out.writeLong(xact);
+        out.writeInt(key);
+        out.writeInt(value);
+    }
+
+    public void sendModquery(long xact, int k) throws IOException {
+        request(Protocol.MODQUERY);
+        out.writeLong(xact);
+        out.writeInt(k);
+    }
+
+    public void sendCommit(long xact) throws IOException {
+        request(Protocol.COMMIT);
+        out.writeLong(xact);
+    }
+
+    public void sendRollback(long xact) throws IOException {
+        request(Protocol.ROLLBACK);
+        out.writeLong(xact);
+    }
+
+    public long awaitBegin() throws IOException, AbortedException, NoSuchXactException {
+        await();
+        return in.readLong();
+    }
+
+    public int awaitRead() throws IOException, AbortedException, NoSuchXactException {
+        await();
+        return in.readInt();
+    }
+
+    public int[] awaitModquery() throws IOException, AbortedException, NoSuchXactException {
+        await();
+        int[] values = new int[in.readInt()];
+        for (int i = 0; i < values.length; i++) values[i] = in.readInt();
+        return values;
+    }
+
+    /**
+     *  Take the reply to the oldest request not awaited yet, for those with
+     *  no result: sendWrite, sendCommit and sendRollback.
+     */
+    public void await() throws IOException, AbortedException, NoSuchXactException {
+        if (pending == 0) throw new IllegalStateException("no request to await");
+        if (unflushed) {
+            out.flush();
+            unflushed = false;
+        }
+
+        int status = in.readUnsignedByte();
+        pending--;
+
+        switch (status) {
+            case Protocol.OK:
+                return;
+            case Protocol.ABORTED:
+                throw new AbortedException(in.readInt());
+            case Protocol.NO_SUCH_XACT:
+                throw new NoSuchXactException();
+            case Protocol.FAILED:
+                throw new IOException("the server failed: " + in.readUTF());
+            default:
+                throw new IOException("unknown status " + status);
+        }
+    }
+
+    /**
+     *  Close the connection: the server rolls back the xacts begun over it
+     *  that are still running.
+     */
+    public void close() throws IOException {
+        socket.close();
+    }
+
+    private void request(int op) throws IOException {
+        out.writeByte(op);
+        pending++;
+        unflushed = true;
+    }
+}
@@ -0,0 +1,58 @@
+/**
+ *  Measures the latency of OMVCC.read on keys with a growing number of
+ *  committed versions.
+ *
+ *  Version chains are kept newest first, so a read from a recent snapshot
+ *  stops at the head of the chain whatever its length: the reported
+ *  latency should stay flat across depths.
+ *
+ *  Reads are measured from an xact started with begin, which tracks what it
+ *  reads for validation, and from one started with beginReadOnly, which
+ *  does not.
+ *
+ *  Usage: java OMVCCReadBenchmark [maxDepth] [reads]
+ */
+public class OMVCCReadBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int maxDepth = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        int reads    = args.length > 1 ? Integer.parseInt(args[1]) : 1000000;
+
+        System.out.println("versions/key    ns/read  ns/read (read-only)");
+
+        int key = 0;
+        for (int depth = 1; depth <= maxDepth; depth *= 10) {
+            key++;
+
+            // build a chain of `depth` committed versions for key
+            for (int v = 0; v < depth; v++) {
+                long xact = OMVCC.begin();
+                OMVCC.write(xact, key, v);
+                OMVCC.commit(xact);
+            }
+
+            double tracked  = measure(OMVCC.begin(), key, depth, reads);
+            double readOnly = measure(OMVCC.beginReadOnly(), key, depth, reads);
+
+            System.out.println(String.format("%12d %10.1f %20.1f", depth, tracked, readOnly));
+        }
+    }
+
+    // ns per read of key by xact, which is then committed
+    private static double measure(long xact, int key, int depth, int reads) throws Exception {
+        // warm-up, then measure
+        long sink = 0;
+        for (int i = 0; i < reads; i++) sink += OMVCC.read(xact, key);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < reads; i++) sink += OMVCC.read(xact, key);
+        long elapsed = System.nanoTime() - start;
+
+        OMVCC.commit(xact);
+
+        if (sink != 2L * reads * (depth - 1))
+            throw new AssertionError("unexpected value read at depth " + depth);
+
+        return (double) elapsed / reads;
+    }
+}
@@ -1,3 +1,8 @@
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+
+import javax.management.ObjectName;
+
 /**
  *  This is an example test file. Try others to debug your OMVCC impl.
  *
@@ -31,6 +36,164 @@ public class OMVCCTest1 {
             assert OMVCC.read(t4, 2) == 17;
             OMVCC.commit(t4);
 
+            // a read-only xact sees the same, and cannot write
+            long t5 = OMVCC.beginReadOnly();
+            assert OMVCC.read(t5, 1) == 52;
+            try {
+                OMVCC.write(t5, 1, 0);
+                assert false;
+            } catch (OMVCC.BadWriteException e) {
+                // t5 was aborted
+            }
+
+            // the metrics count the operations, and why xacts were aborted
+            OMVCC.enableMetrics();
+            long t6 = OMVCC.begin();
+            long t7 = OMVCC.begin();
+            OMVCC.write(t6, 1, 0);
+            try {
+                OMVCC.write(t7, 1, 1);
+                assert false;
+            } catch (OMVCC.BadWriteException e) {
+                assert e.reason() == OMVCC.WriteConflict();
+            }
+            OMVCC.readMany(t6, new int[] { 1, 2 }, new int[2]);
+            OMVCC.scan(t6, 1, 3);
+            OMVCC.commit(t6);
+
+            Map<String, Long> metrics = OMVCC.metricsSnapshot();
+            assert metrics.get("write.count") == 2;
+            assert metrics.get("readMany.count") == 1;
+            assert metrics.get("scan.count") == 1;
+            assert metrics.get("xacts.committed") == 1;
+            assert metrics.get("aborts.writeConflict") == 1;
+            assert metrics.get("chains.max") >= 2;
+
+            Object committed = ManagementFactory.getPlatformMBeanServer()
+                .getAttribute(new ObjectName("OMVCC:type=Metrics"), "xacts.committed");
+            assert committed.equals(1L);
+            OMVCC.disableMetrics();
+
+            // with waits, an older xact waits for a younger one holding the
+            // key to roll back, while a younger one fails at once
+            OMVCC.setWriteWait(10000);
+            long t8 = OMVCC.begin();
+            long t9 = OMVCC.begin();
+            OMVCC.write(t9, 3, 9);
+            new Thread(() -> {
+                try {
+                    Thread.sleep(50);
+                    OMVCC.rollback(t9);
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }).start();
+            OMVCC.write(t8, 3, 8);
+
+            long t10 = OMVCC.begin();
+            try {
+                OMVCC.write(t10, 3, 10);
+                assert false;
+            } catch (OMVCC.BadWriteException e) {
+                // t10 was aborted
+            }
+            OMVCC.commit(t8);
+            OMVCC.setWriteWait(0);
+
+            // several keys at once, and the keys of a range in order
+            long t11 = OMVCC.begin();
+            int[] values = new int[2];
+            OMVCC.readMany(t11, new int[] { 2, 3 }, values);
+            assert values[0] == 17 && values[1] == 8;
+            Map<Integer, Integer> range = OMVCC.scan(t11, 1, 100);
+            assert range.keySet().toString().equals("[1, 2, 3]");
+            assert range.values().toString().equals("[0, 17, 8]");
+            OMVCC.commit(t11);
+
+            // inserting a key into a range scanned by a running xact
+            // makes it fail to commit
+            long t12 = OMVCC.begin();
+            assert OMVCC.scan(t12, 100, 200).isEmpty();
+            long t13 = OMVCC.begin();
+            OMVCC.write(t13, 150, 0);
+            OMVCC.commit(t13);
+            OMVCC.write(t12, 5, 0);
+            try {
+                OMVCC.commit(t12);
+                assert false;
+            } catch (OMVCC.BadCommitException e) {
+                assert e.reason() == OMVCC.Phantom();
+            }
+
+            // collecting garbage unlinks the versions superseded before the
+            // oldest running snapshot, and keeps those it still sees
+            OMVCC.collectGarbage();
+            long t14 = OMVCC.begin();
+            OMVCC.write(t14, 200, 1);
+            OMVCC.commit(t14);
+            long t15 = OMVCC.begin();
+            OMVCC.write(t15, 200, 2);
+            OMVCC.commit(t15);
+            long t16 = OMVCC.begin(); // sees 2
+            long t17 = OMVCC.begin();
+            OMVCC.write(t17, 200, 3);
+            OMVCC.commit(t17);
+            long t18 = OMVCC.begin();
+            OMVCC.write(t18, 200, 4);
+            OMVCC.commit(t18);
+
+            OMVCC.GarbageCollection collected = OMVCC.collectGarbage();
+            assert collected.versions() == 1 : collected; // 1, superseded by 2
+            assert OMVCC.read(t16, 200) == 2;
+            OMVCC.commit(t16);
+            collected = OMVCC.collectGarbage();
+            assert collected.versions() == 2 : collected; // 2 and 3
+            long t19 = OMVCC.begin();
+            assert OMVCC.read(t19, 200) == 4;
+            assert OMVCC.read(t19, 1) == 0;
+            OMVCC.commit(t19);
+
+            // a batch commits the xacts that pass validation, in order and
+            // with consecutive timestamps, and aborts the others
+            LoopbackTransport shipped = new LoopbackTransport();
+            OMVCC.addFollower(shipped);
+            long[] batch = new long[3];
+            for (int i = 0; i < batch.length; i++) {
+                batch[i] = OMVCC.begin();
+                OMVCC.write(batch[i], 300 + i, i);
+            }
+            int[] outcomes = OMVCC.commitBatch(batch);
+            OMVCC.removeFollower(shipped);
+            for (int outcome : outcomes) assert outcome == OMVCC.Committed();
+
+            shipped.receive(); // the state when the follower was added
+            long first = shipped.receive().commitTimestamp();
+            assert shipped.receive().commitTimestamp() == first + 1;
+            assert shipped.receive().commitTimestamp() == first + 2;
+            assert shipped.receive() == null;
+
+            long t20 = OMVCC.begin();
+            for (int i = 0; i < batch.length; i++) assert OMVCC.read(t20, 300 + i) == i;
+            OMVCC.commit(t20);
+
+            // t21 read what t22, accepted before it, writes
+            long t21 = OMVCC.begin();
+            long t22 = OMVCC.begin();
+            OMVCC.write(t21, 310, OMVCC.read(t21, 300));
+            OMVCC.write(t22, 300, 9);
+            outcomes = OMVCC.commitBatch(new long[] { t22, t21 });
+            assert outcomes[0] == OMVCC.Committed();
+            assert outcomes[1] == OMVCC.Aborted();
+            try {
+                OMVCC.rollback(t21);
+                assert false;
+            } catch (OMVCC.NoSuchXactException e) {
+                // t21 was rolled back
+            }
+            long t23 = OMVCC.begin();
+            assert OMVCC.read(t23, 300) == 9;
+            OMVCC.commit(t23);
+
             System.out.println("Success in OMVCCTest1!");
         } catch (Exception e) {
             e.printStackTrace();
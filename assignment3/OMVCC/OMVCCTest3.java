@@ -0,0 +1,128 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+
+import scala.runtime.AbstractFunction3;
+import scala.runtime.BoxedUnit;
+
+/**
+ *  Tests recovery from the redo log after a crash.
+ *
+ *  A child JVM commits xacts that each set keys 0 to 9 to the same value i,
+ *  and insert key 100 + i with value i, printing i once its commit
+ *  returned, and is killed while it does so. The end of its log is then
+ *  torn on purpose. Recovery must bring back a state where all keys 0 to 9
+ *  hold the same value, no older than the last acknowledged commit but one
+ *  (the torn one), along with every key inserted up to then, and accept new
+ *  commits. A log ending before the position of a checkpoint is refused.
+ *
+ *  With "checkpointed", the child also takes checkpoints in the background,
+ *  and recovery starts from the last one.
+ *
+ *  Usage: java OMVCCTest3 [checkpointed]
+ */
+public class OMVCCTest3 {
+    private static final int KEYS = 10;
+    private static final int ACKS = 200;
+
+    private static final int INSERTED = 100;
+
+    public static void main(String[] args) {
+        if (args.length == 3 && args[0].equals("writer")) {
+            try {
+                write(args[1], args[2].isEmpty() ? null : args[2]);
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+            return;
+        }
+
+        try {
+            File log = File.createTempFile("omvcc", ".log");
+            log.deleteOnExit();
+
+            String checkpoint = "";
+            if (args.length > 0 && args[0].equals("checkpointed")) {
+                checkpoint = log.getPath() + ".checkpoint";
+                new File(checkpoint).deleteOnExit();
+            }
+
+            Process writer = new ProcessBuilder(
+                    System.getProperty("java.home") + File.separator + "bin" + File.separator + "java",
+                    "-cp", System.getProperty("java.class.path"),
+                    "OMVCCTest3", "writer", log.getPath(), checkpoint)
+                .redirectError(ProcessBuilder.Redirect.INHERIT)
+                .start();
+
+            BufferedReader acks = new BufferedReader(new InputStreamReader(writer.getInputStream()));
+            int lastAck = -1;
+            String line;
+            while (lastAck < ACKS && (line = acks.readLine()) != null) lastAck = Integer.parseInt(line);
+
+            writer.destroyForcibly().waitFor();
+            assert lastAck >= ACKS : "the writer died early";
+
+            assert checkpoint.isEmpty() || new File(checkpoint).exists() : "no checkpoint was taken";
+
+            // tear the last record, unless the checkpoint points past it:
+            // the log was forced up to there before the checkpoint was taken
+            long checkpointed = checkpoint.isEmpty() ? 0 : Checkpoint.map(checkpoint).logPosition();
+            try (RandomAccessFile file = new RandomAccessFile(log, "rw")) {
+                file.setLength(Math.max(file.length() - 3, checkpointed));
+            }
+
+            OMVCC.openRedoLog(log.getPath(), RedoLog.Sync(), checkpoint.isEmpty() ? null : checkpoint);
+
+            long t1 = OMVCC.begin();
+            long value = OMVCC.read(t1, 0);
+            for (int key = 1; key < KEYS; key++) assert OMVCC.read(t1, key) == value;
+            assert value >= lastAck - 1;
+            for (int i = 0; i <= value; i++) assert OMVCC.read(t1, INSERTED + i) == i;
+            OMVCC.write(t1, 0, -1);
+            OMVCC.commit(t1);
+
+            long t2 = OMVCC.begin();
+            assert OMVCC.read(t2, 0) == -1;
+            assert OMVCC.read(t2, 1) == value;
+            OMVCC.commit(t2);
+
+            OMVCC.closeRedoLog();
+
+            // a log ending before the position of a checkpoint does not go
+            // with it, and is refused rather than appended to
+            try {
+                RedoLog.open(log.getPath(), RedoLog.Sync(), RedoLog.DefaultFlushPeriodMillis(), log.length() + 1,
+                    new AbstractFunction3<Object, int[], int[], BoxedUnit>() {
+                        public BoxedUnit apply(Object commitTimestamp, int[] keys, int[] values) {
+                            return BoxedUnit.UNIT;
+                        }
+                    });
+                assert false : "opened a log ending before its checkpoint";
+            } catch (IllegalStateException e) {
+                // expected
+            }
+
+            System.out.println("Success in OMVCCTest3!");
+        } catch (Exception e) {
+            e.printStackTrace();
+            System.out.println("Failure in OMVCCTest3!");
+        }
+    }
+
+    // commit forever, acknowledging every commit on stdout
+    private static void write(String log, String checkpoint) throws Exception {
+        OMVCC.openRedoLog(log, RedoLog.Sync());
+        if (checkpoint != null) OMVCC.startCheckpointer(checkpoint, 5);
+
+        for (int i = 0; ; i++) {
+            long xact = OMVCC.begin();
+            for (int key = 0; key < KEYS; key++) OMVCC.write(xact, key, i);
+            OMVCC.write(xact, INSERTED + i, i);
+            OMVCC.commit(xact);
+
+            System.out.println(i);
+            System.out.flush();
+        }
+    }
+}
@@ -0,0 +1,138 @@
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ *  Tests replication to a follower over a loopback transport.
+ *
+ *  The follower is attached once the primary holds some keys, then several
+ *  threads commit on the primary. Once a marker commit shows up on the
+ *  follower, its snapshot must match the one of the primary, while a
+ *  snapshot taken earlier on the follower must not see later commits.
+ *
+ *  Then a follower is closed on its own, without removing it from the
+ *  primary: the primary must detach it, and keep committing and reading.
+ *
+ *  Usage: java OMVCCTest4
+ */
+public class OMVCCTest4 {
+    private static final int KEYS    = 100;
+    private static final int THREADS = 4;
+    private static final int COMMITS = 500;
+    private static final int MARKER  = 1000;
+
+    public static void main(String[] args) {
+        try {
+            long t1 = OMVCC.begin();
+            for (int key = 0; key < KEYS; key++) OMVCC.write(t1, key, key);
+            OMVCC.commit(t1);
+
+            LoopbackTransport transport = new LoopbackTransport();
+            OMVCC.addFollower(transport);
+            Follower follower = new Follower(transport);
+
+            Thread[] writers = new Thread[THREADS];
+            for (int i = 0; i < THREADS; i++) {
+                final Random random = new Random(i);
+                writers[i] = new Thread(new Runnable() {
+                    public void run() {
+                        for (int c = 0; c < COMMITS; c++) {
+                            try {
+                                long xact = OMVCC.begin();
+                                OMVCC.write(xact, random.nextInt(KEYS), random.nextInt(1000));
+                                OMVCC.write(xact, random.nextInt(KEYS), random.nextInt(1000));
+                                OMVCC.commit(xact);
+                            } catch (Exception e) {
+                                // conflict, the xact was rolled back
+                            }
+                        }
+                    }
+                });
+                writers[i].start();
+            }
+            for (Thread writer : writers) writer.join();
+
+            long before = follower.begin();
+
+            long t2 = OMVCC.begin();
+            OMVCC.write(t2, MARKER, 1);
+            OMVCC.commit(t2);
+
+            awaitMarker(follower, 1);
+
+            long t3 = OMVCC.begin();
+            long f1 = follower.begin();
+            for (int key = 0; key < KEYS; key++) assert OMVCC.read(t3, key) == follower.read(f1, key);
+            List<Integer> expected = OMVCC.modquery(t3, 3);
+            List<Integer> replicated = follower.modquery(f1, 3);
+            Collections.sort(expected);
+            Collections.sort(replicated);
+            assert expected.equals(replicated);
+            OMVCC.commit(t3);
+            follower.commit(f1);
+
+            // an older snapshot does not see the marker
+            try {
+                follower.read(before, MARKER);
+                assert false : "the marker was committed after the snapshot";
+            } catch (Exception e) {
+                // NoSuchKeyException
+            }
+
+            assert follower.lagMillis() >= 0;
+
+            OMVCC.removeFollower(transport);
+            follower.close();
+
+            LoopbackTransport closing = new LoopbackTransport();
+            OMVCC.addFollower(closing);
+            new Follower(closing).close();
+
+            final Exception[] failure = new Exception[1];
+            Thread primary = new Thread(() -> {
+                try {
+                    for (int c = 0; c < COMMITS; c++) {
+                        long xact = OMVCC.begin();
+                        OMVCC.write(xact, MARKER, c);
+                        OMVCC.commit(xact);
+
+                        long reader = OMVCC.begin();
+                        assert OMVCC.read(reader, MARKER) == c;
+                        OMVCC.commit(reader);
+                    }
+                } catch (Exception e) {
+                    failure[0] = e;
+                }
+            });
+            primary.setDaemon(true);
+            primary.start();
+            primary.join(10000);
+
+            assert !primary.isAlive() : "the primary is stuck on a closed follower";
+            if (failure[0] != null) throw failure[0];
+            OMVCC.removeFollower(closing);
+
+            System.out.println("Success in OMVCCTest4!");
+        } catch (Exception e) {
+            e.printStackTrace();
+            System.out.println("Failure in OMVCCTest4!");
+        }
+    }
+
+    private static void awaitMarker(Follower follower, int value) throws Exception {
+        for (int tries = 0; tries < 10000; tries++) {
+            long xact = follower.begin();
+            try {
+                if (follower.read(xact, MARKER) == value) {
+                    follower.commit(xact);
+                    return;
+                }
+                follower.commit(xact);
+            } catch (Exception e) {
+                // not there yet, the xact was ended
+            }
+            Thread.sleep(1);
+        }
+        throw new AssertionError("the marker never reached the follower");
+    }
+}
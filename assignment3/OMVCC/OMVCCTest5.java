@@ -0,0 +1,505 @@
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ *  Load test: random schedules, in the DSL of OMVCCTest2, run from several
+ *  threads at once, and a checker of the outcome.
+ *
+ *  Every write stores a value unique to the xact and operation, so that a
+ *  read tells which version it saw. The commit timestamps, which the API
+ *  does not expose, are taken from the write sets the store ships to a
+ *  follower (see OMVCC.addFollower). The checker then makes sure that:
+ *   - every xact, committed or not, read from a snapshot: some s such that
+ *     its reads and mod queries return the latest versions committed
+ *     before s, or its own writes;
+ *   - a committed writer did not overlap a committed writer of the same
+ *     keys (snapshot isolation), and its snapshot could have been taken
+ *     right at its commit timestamp: committing in timestamp order is then
+ *     a serial execution (serializability);
+ *   - the committed xacts have no cycle of dependencies: write-write,
+ *     write-read, or read-write (from a snapshot to the writer of the next
+ *     version), which makes them serializable in some order;
+ *   - the store ends up with the last committed version of every key.
+ *
+ *  In SerializableSnapshot mode (see OMVCC.setIsolation), xacts might be
+ *  serializable in another order than that of their commit timestamps: the
+ *  third check is skipped.
+ *
+ *  Usage: java OMVCCTest5 [xacts] [threads] [skew] [modqueryPercent] [ssi]
+ *  where a skew of 1 picks keys uniformly, and larger skews favor the
+ *  first keys.
+ */
+public class OMVCCTest5 {
+    private static final int KEYS          = 64;
+    private static final int MAX_OPS       = 8;
+    private static final int WRITE_PERCENT = 40;
+    private static final int ABORT_PERCENT = 5;
+
+    // values are label * STRIDE + operation + 1; the initial ones have label 0
+    private static final int STRIDE = Math.max(KEYS, MAX_OPS) + 1;
+
+    private static final Recorder recorder = new Recorder();
+
+    // ticked before every xact begins and once it is done, to order them
+    private static final AtomicLong clock = new AtomicLong();
+
+    public static void main(String[] args) {
+        int xacts           = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+        int threads         = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        double skew         = args.length > 2 ? Double.parseDouble(args[2]) : 2.0;
+        int modqueryPercent = args.length > 3 ? Integer.parseInt(args[3]) : 5;
+        boolean ssi         = args.length > 4 && args[4].equals("ssi");
+
+        if (ssi) OMVCC.setIsolation(OMVCC.SerializableSnapshot());
+
+        try {
+            int[][][] schedule = generate(new Random(42), xacts, skew, modqueryPercent);
+
+            long t0 = OMVCC.begin();
+            for (int key = 0; key < KEYS; key++) OMVCC.write(t0, key, value(0, key));
+            OMVCC.commit(t0);
+
+            OMVCC.addFollower(recorder);
+
+            Outcome[] outcomes = run(schedule, threads);
+
+            OMVCC.removeFollower(recorder);
+
+            History history = new History(recorder.sent);
+            bound(history, outcomes);
+            long[] snapshots = new long[xacts];
+            int committed = 0;
+            for (int i = 0; i < outcomes.length; i++) {
+                snapshots[i] = check(history, i + 1, schedule[i], outcomes[i], !ssi);
+                if (outcomes[i].committed) committed++;
+            }
+            checkAcyclic(history, schedule, outcomes, snapshots);
+
+            long last = OMVCC.beginReadOnly();
+            for (int key = 0; key < KEYS; key++)
+                assert OMVCC.read(last, key) == history.valueAt(key, Long.MAX_VALUE) : "lost write on key " + key;
+            OMVCC.commit(last);
+
+            System.out.println(String.format("%d xacts, %d committed, %d aborted", xacts, committed, xacts - committed));
+            System.out.println("Success in OMVCCTest5!");
+        } catch (Exception e) {
+            e.printStackTrace();
+            System.out.println("Failure in OMVCCTest5!");
+        }
+    }
+
+    private static int value(int label, int op) {
+        return label * STRIDE + op + 1;
+    }
+
+    private static int labelOf(int value) {
+        return (value - 1) / STRIDE;
+    }
+
+    /**
+     *  Random xacts of 1 to MAX_OPS reads, writes and mod queries, ending
+     *  with a commit or, sometimes, an abort.
+     */
+    static int[][][] generate(Random random, int xacts, double skew, int modqueryPercent) {
+        int[][][] schedule = new int[xacts][][];
+
+        for (int i = 0; i < xacts; i++) {
+            int ops = 1 + random.nextInt(MAX_OPS);
+            schedule[i] = new int[ops + 1][];
+
+            for (int j = 0; j < ops; j++) {
+                int key = (int) (KEYS * Math.pow(random.nextDouble(), skew));
+                int dice = random.nextInt(100);
+
+                if (dice < modqueryPercent) schedule[i][j] = OMVCCTest2.M(2 + random.nextInt(6));
+                else if (dice < modqueryPercent + WRITE_PERCENT) schedule[i][j] = OMVCCTest2.W2(key, value(i + 1, j));
+                else schedule[i][j] = OMVCCTest2.R(key);
+            }
+
+            schedule[i][ops] = random.nextInt(100) < ABORT_PERCENT ? OMVCCTest2.__A_ : OMVCCTest2.__C_;
+        }
+
+        return schedule;
+    }
+
+    /**
+     *  What an xact observed: for each of its operations, the value read,
+     *  the result of the mod query, or nothing; and whether it committed.
+     */
+    static class Outcome {
+        final Integer[] reads;
+        final List<Integer>[] modqueries;
+        int done; // operations that went through
+        boolean committed;
+        long begun, ended; // ticks of the clock before begin, and once done
+        long low, high;    // bounds of the snapshot, see bound
+
+        @SuppressWarnings("unchecked")
+        Outcome(int ops) {
+            reads      = new Integer[ops];
+            modqueries = (List<Integer>[]) new List<?>[ops];
+        }
+    }
+
+    /**
+     *  Run the xacts of the schedule on the given number of threads, each
+     *  taking the next xact once done with the previous one.
+     */
+    static Outcome[] run(final int[][][] schedule, int threads) throws InterruptedException {
+        final Outcome[] outcomes = new Outcome[schedule.length];
+        final AtomicInteger next = new AtomicInteger();
+        final ConcurrentLinkedQueue<Throwable> failures = new ConcurrentLinkedQueue<Throwable>();
+
+        Thread[] workers = new Thread[threads];
+        for (int w = 0; w < threads; w++) {
+            workers[w] = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        for (int i = next.getAndIncrement(); i < schedule.length; i = next.getAndIncrement())
+                            outcomes[i] = execute(schedule[i]);
+                    } catch (Throwable e) {
+                        failures.add(e);
+                    }
+                }
+            });
+            workers[w].start();
+        }
+        for (Thread worker : workers) worker.join();
+
+        if (!failures.isEmpty()) throw new AssertionError(failures.peek());
+        return outcomes;
+    }
+
+    private static Outcome execute(int[][] ops) throws Exception {
+        Outcome outcome = new Outcome(ops.length);
+        outcome.begun = clock.incrementAndGet();
+        long xact = OMVCC.begin();
+
+        try {
+            for (int[] op : ops) {
+                switch (op[0]) {
+                    case OMVCCTest2.READ:
+                        outcome.reads[outcome.done] = OMVCC.read(xact, op[1]);
+                        break;
+                    case OMVCCTest2.WRITE2:
+                        OMVCC.write(xact, op[1], op[2]);
+                        break;
+                    case OMVCCTest2.MODQ:
+                        List<Integer> result = OMVCC.modquery(xact, op[1]);
+                        Collections.sort(result);
+                        outcome.modqueries[outcome.done] = result;
+                        break;
+                    case OMVCCTest2.COMMIT:
+                        OMVCC.commit(xact);
+                        outcome.committed = true;
+                        break;
+                    case OMVCCTest2.ABORT:
+                        OMVCC.rollback(xact);
+                        break;
+                }
+                outcome.done++;
+            }
+        } catch (Exception e) {
+            // refused: the xact was aborted, and what it observed so far stands
+            if (!e.getClass().getName().startsWith("OMVCC$")) throw e;
+        }
+
+        outcome.ended = clock.incrementAndGet();
+        return outcome;
+    }
+
+    /**
+     *  The committed versions of every key, in commit timestamp order, the
+     *  commit timestamp of every committed writer, and of every write set in
+     *  the order they were shipped.
+     */
+    static class History {
+        final long[][] timestamps = new long[KEYS][];
+        final int[][] values = new int[KEYS][];
+        final Map<Integer, Long> commits = new HashMap<Integer, Long>();
+        final long[] shipped;
+
+        // the snapshots at which the state changes, in order
+        final long[] points;
+
+        History(Collection<WriteSet> sent) {
+            List<List<long[]>> versions = new ArrayList<List<long[]>>();
+            for (int key = 0; key < KEYS; key++) versions.add(new ArrayList<long[]>());
+
+            shipped = new long[sent.size()];
+            int n = 0;
+            for (WriteSet writes : sent) {
+                assert n == 0 || writes.commitTimestamp() > shipped[n - 1] : "write sets shipped out of order";
+                shipped[n++] = writes.commitTimestamp();
+
+                for (int i = 0; i < writes.keys().length; i++)
+                    versions.get(writes.keys()[i]).add(new long[] { writes.commitTimestamp(), writes.values()[i] });
+
+                int label = labelOf(writes.values()[0]);
+                if (label > 0) commits.put(label, writes.commitTimestamp());
+            }
+
+            TreeSet<Long> changes = new TreeSet<Long>();
+            for (int key = 0; key < KEYS; key++) {
+                List<long[]> vs = versions.get(key);
+                timestamps[key] = new long[vs.size()];
+                values[key] = new int[vs.size()];
+                for (int i = 0; i < vs.size(); i++) {
+                    timestamps[key][i] = vs.get(i)[0];
+                    values[key][i] = (int) vs.get(i)[1];
+                    changes.add(timestamps[key][i] + 1);
+                }
+            }
+
+            points = new long[changes.size()];
+            int i = 0;
+            for (long point : changes) points[i++] = point;
+        }
+
+        // index of the version of key visible to a snapshot at s, or -1
+        int versionAt(int key, long s) {
+            int i = Arrays.binarySearch(timestamps[key], s);
+            return (i >= 0 ? i : -i - 1) - 1;
+        }
+
+        int valueAt(int key, long s) {
+            int i = versionAt(key, s);
+            return i < 0 ? -1 : values[key][i];
+        }
+
+        int indexOf(int key, int value) {
+            for (int i = 0; i < values[key].length; i++) if (values[key][i] == value) return i;
+            return -1;
+        }
+    }
+
+    /**
+     *  Bound the snapshot of every xact by the commits of the others: it
+     *  sees those of the writers done before it began, and none of those of
+     *  the writers begun once it was done. The follower receives the write
+     *  sets some time after they are committed, which tells nothing about
+     *  the xacts running meanwhile.
+     */
+    static void bound(History history, Outcome[] outcomes) {
+        List<long[]> writers = new ArrayList<long[]>(); // begun, ended, commit timestamp
+        for (int x = 0; x < outcomes.length; x++) {
+            Long commit = history.commits.get(x + 1);
+            if (commit != null) writers.add(new long[] { outcomes[x].begun, outcomes[x].ended, commit });
+        }
+
+        // the latest commit among the writers done by each tick, and the
+        // earliest among those begun from each tick on
+        long[][] byEnd = writers.toArray(new long[0][]);
+        Arrays.sort(byEnd, (a, b) -> Long.compare(a[1], b[1]));
+        long[] latest = new long[byEnd.length];
+        for (int i = 0; i < byEnd.length; i++) latest[i] = Math.max(i > 0 ? latest[i - 1] : 0, byEnd[i][2]);
+
+        long[][] byBegin = writers.toArray(new long[0][]);
+        Arrays.sort(byBegin, (a, b) -> Long.compare(a[0], b[0]));
+        long[] earliest = new long[byBegin.length];
+        for (int i = byBegin.length - 1; i >= 0; i--)
+            earliest[i] = Math.min(i + 1 < byBegin.length ? earliest[i + 1] : Long.MAX_VALUE, byBegin[i][2]);
+
+        for (Outcome outcome : outcomes) {
+            // the initial state was shipped first, and committed before
+            int done = countBefore(byEnd, 1, outcome.begun);
+            outcome.low = Math.max(history.shipped[0], done > 0 ? latest[done - 1] : 0) + 1;
+
+            int begun = countBefore(byBegin, 0, outcome.ended);
+            outcome.high = begun < byBegin.length ? earliest[begun] : Long.MAX_VALUE;
+        }
+    }
+
+    // how many of the sorted rows have a field smaller than tick
+    private static int countBefore(long[][] rows, int field, long tick) {
+        int from = 0, until = rows.length;
+        while (from < until) {
+            int middle = (from + until) >>> 1;
+            if (rows[middle][field] < tick) from = middle + 1;
+            else until = middle;
+        }
+        return from;
+    }
+
+    /**
+     *  Check the outcome of xact `label` against the history, see above, and
+     *  return the snapshot it read from; serializability in commit timestamp
+     *  order is only checked if inCommitOrder.
+     */
+    static long check(History history, int label, int[][] ops, Outcome outcome, boolean inCommitOrder) {
+        long low  = outcome.low;
+        long high = outcome.high;
+
+        Long commit = history.commits.get(label);
+        boolean writes = false;
+        for (int j = 0; j < outcome.done; j++) if (ops[j][0] == OMVCCTest2.WRITE2) writes = true;
+
+        assert outcome.committed == (commit != null) || (outcome.committed && !writes)
+            : "T(" + label + ") committed " + outcome.committed + " but shipped " + (commit != null);
+
+        Map<Integer, Integer> own = new HashMap<Integer, Integer>();
+        for (int j = 0; j < outcome.done; j++) {
+            int[] op = ops[j];
+            if (op[0] == OMVCCTest2.WRITE2) own.put(op[1], op[2]);
+            else if (op[0] == OMVCCTest2.READ) {
+                int key = op[1], value = outcome.reads[j];
+                if (own.containsKey(key)) {
+                    assert own.get(key) == value : "T(" + label + ") did not read its own write of " + key;
+                    continue;
+                }
+                int i = history.indexOf(key, value);
+                assert i >= 0 : "T(" + label + ") read " + value + " for " + key + ", which was never committed";
+                low  = Math.max(low, history.timestamps[key][i] + 1);
+                if (i + 1 < history.timestamps[key].length) high = Math.min(high, history.timestamps[key][i + 1]);
+            }
+        }
+
+        if (commit != null) {
+            // no committed writer of the same keys in between, and a snapshot
+            // taken before the commit
+            high = Math.min(high, commit);
+            for (int key : own.keySet()) {
+                int i = history.indexOf(key, own.get(key));
+                if (i > 0) low = Math.max(low, history.timestamps[key][i - 1] + 1);
+            }
+
+            // serializable at the commit timestamp
+            assert !inCommitOrder || (low <= commit && commit <= high && modqueriesMatch(history, ops, outcome, commit))
+                : "T(" + label + ") is not serializable at its commit timestamp " + commit;
+        }
+
+        assert low <= high : "T(" + label + ") did not read from a snapshot";
+
+        // some snapshot in range explains the mod queries too. take the
+        // latest one: a mod query might match several, which differ by
+        // versions that came and went without changing its result, and the
+        // xact was ordered after those (see checkAcyclic)
+        long[] points = history.points;
+        int i = Arrays.binarySearch(points, high);
+        for (int p = (i < 0 ? -i - 1 : i + 1) - 1; p >= 0 && points[p] > low; p--)
+            if (modqueriesMatch(history, ops, outcome, points[p])) return points[p];
+        if (modqueriesMatch(history, ops, outcome, low)) return low;
+
+        throw new AssertionError("T(" + label + ") mod queries do not match any snapshot");
+    }
+
+    /**
+     *  Check that the dependencies between the committed xacts, each reading
+     *  from the given snapshot, form no cycle; xact 0 wrote the initial state.
+     */
+    static void checkAcyclic(History history, int[][][] schedule, Outcome[] outcomes, long[] snapshots) {
+        List<Set<Integer>> edges = new ArrayList<Set<Integer>>();
+        for (int label = 0; label <= schedule.length; label++) edges.add(new HashSet<Integer>());
+
+        // write-write, in commit order
+        for (int key = 0; key < KEYS; key++)
+            for (int i = 1; i < history.values[key].length; i++)
+                edges.get(writerOf(history, key, i - 1)).add(writerOf(history, key, i));
+
+        for (int x = 0; x < schedule.length; x++) {
+            if (!outcomes[x].committed) continue;
+            int label = x + 1;
+            int[][] ops = schedule[x];
+
+            Set<Integer> own = new HashSet<Integer>();
+            for (int j = 0; j < outcomes[x].done; j++) {
+                int[] op = ops[j];
+                if (op[0] == OMVCCTest2.WRITE2) own.add(op[1]);
+                else if (op[0] == OMVCCTest2.READ) {
+                    if (!own.contains(op[1])) depend(history, edges, label, op[1], snapshots[x], 1);
+                } else if (op[0] == OMVCCTest2.MODQ) {
+                    for (int key = 0; key < KEYS; key++)
+                        if (!own.contains(key)) depend(history, edges, label, key, snapshots[x], op[1]);
+                }
+            }
+        }
+
+        // depth-first search for a back edge
+        int[] state = new int[edges.size()]; // 0 unvisited, 1 on the path, 2 done
+        for (int root = 0; root < edges.size(); root++) {
+            if (state[root] != 0) continue;
+
+            Deque<Integer> path = new ArrayDeque<Integer>();
+            Deque<Iterator<Integer>> next = new ArrayDeque<Iterator<Integer>>();
+            path.push(root);
+            next.push(edges.get(root).iterator());
+            state[root] = 1;
+
+            while (!path.isEmpty()) {
+                if (next.peek().hasNext()) {
+                    int to = next.peek().next();
+                    assert state[to] != 1 : "T(" + to + ") depends on itself through T(" + path.peek() + ")";
+                    if (state[to] == 0) {
+                        state[to] = 1;
+                        path.push(to);
+                        next.push(edges.get(to).iterator());
+                    }
+                } else {
+                    state[path.pop()] = 2;
+                    next.pop();
+                }
+            }
+        }
+    }
+
+    // the dependencies of xact label reading key from snapshot s, directly
+    // or through a mod query on modulus (1 for a read): on the writer of the
+    // version it saw, if it matters, and to the writer of the first later
+    // version that would have made a difference
+    private static void depend(History history, List<Set<Integer>> edges, int label, int key, long s, int modulus) {
+        int[] values = history.values[key];
+        int i = history.versionAt(key, s);
+
+        if (i >= 0 && values[i] % modulus == 0) edges.get(writerOf(history, key, i)).add(label);
+
+        for (int j = i + 1; j < values.length; j++) {
+            if (values[j] % modulus == 0 || (j > 0 && values[j - 1] % modulus == 0)) {
+                int writer = writerOf(history, key, j);
+                if (writer != label) edges.get(label).add(writer);
+                return;
+            }
+        }
+    }
+
+    private static int writerOf(History history, int key, int version) {
+        return labelOf(history.values[key][version]);
+    }
+
+    private static boolean modqueriesMatch(History history, int[][] ops, Outcome outcome, long s) {
+        Map<Integer, Integer> own = new HashMap<Integer, Integer>();
+        for (int j = 0; j < outcome.done; j++) {
+            int[] op = ops[j];
+            if (op[0] == OMVCCTest2.WRITE2) own.put(op[1], op[2]);
+            else if (op[0] == OMVCCTest2.MODQ) {
+                List<Integer> expected = new ArrayList<Integer>();
+                for (int key = 0; key < KEYS; key++) {
+                    int value = own.containsKey(key) ? own.get(key) : history.valueAt(key, s);
+                    if (value >= 0 && value % op[1] == 0) expected.add(value);
+                }
+                Collections.sort(expected);
+                if (!expected.equals(outcome.modqueries[j])) return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     *  Keeps the write sets shipped by the store, in the order it sent them.
+     */
+    static class Recorder implements Transport {
+        final ConcurrentLinkedQueue<WriteSet> sent = new ConcurrentLinkedQueue<WriteSet>();
+
+        public void send(WriteSet writes) {
+            sent.add(writes);
+        }
+
+        public WriteSet receive() {
+            return null;
+        }
+
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,204 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ *  Tests the Server, through OMVCCClient over the loopback interface.
+ *
+ *  First a few sessions check the operations one by one: results, abort
+ *  reasons, the refusal of the xacts of other sessions, and the rollback
+ *  of the xacts of a session that disconnects.
+ *  Then many sessions, each with a connection and a thread of its own,
+ *  move units between random keys for a while, pipelining their requests:
+ *  both reads, then both writes and the commit. The total must not change.
+ *  The throughput is printed.
+ *
+ *  Usage: java OMVCCTest6 [sessions] [seconds]
+ */
+public class OMVCCTest6 {
+    private static final int KEYS    = 1000;
+    private static final int INITIAL = 100;
+    private static final int MISSING = KEYS; // never written
+
+    private static final int STACK_SIZE = 256 * 1024;
+
+    public static void main(String[] args) {
+        int sessions = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        int seconds  = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+
+        Server server = new Server();
+        try {
+            checkOperations(server.port());
+            load(server.port(), sessions, seconds);
+
+            System.out.println("Success in OMVCCTest6!");
+        } catch (Throwable e) {
+            e.printStackTrace();
+            System.out.println("Failure in OMVCCTest6!");
+        } finally {
+            server.close();
+        }
+    }
+
+    private static void checkOperations(int port) throws Exception {
+        OMVCCClient c1 = new OMVCCClient("localhost", port);
+        OMVCCClient c2 = new OMVCCClient("localhost", port);
+
+        // pipelined writes of every key
+        long t1 = c1.begin();
+        for (int key = 0; key < KEYS; key++) c1.sendWrite(t1, key, INITIAL);
+        c1.sendCommit(t1);
+        for (int key = 0; key <= KEYS; key++) c1.await();
+
+        long t2 = c1.begin();
+        assert c1.read(t2, 7) == INITIAL;
+        c1.write(t2, 7, 21);
+        assert c1.read(t2, 7) == 21;
+
+        // every key but the one just written holds a multiple of 5
+        int[] found = c1.modquery(t2, 5);
+        assert found.length == KEYS - 1 : found.length + " multiples of 5";
+        for (int value : found) assert value == INITIAL;
+
+        // a concurrent write of the same key is refused, and its xact is over
+        long t4 = c2.begin();
+        try {
+            c2.write(t4, 7, 0);
+            assert false : "wrote a key another xact is writing";
+        } catch (OMVCCClient.AbortedException e) {
+            assert e.reason == OMVCC.WriteConflict();
+        }
+        try {
+            c2.read(t4, 7);
+            assert false : "read in an aborted xact";
+        } catch (OMVCCClient.NoSuchXactException e) {
+            // expected
+        }
+
+        long t5 = c2.begin();
+        try {
+            c2.read(t5, MISSING);
+            assert false : "read a missing key";
+        } catch (OMVCCClient.AbortedException e) {
+            assert e.reason == OMVCC.NoSuchKey();
+        }
+
+        // a session only runs requests for the xacts it began
+        long t3 = c1.begin();
+        try {
+            c2.read(t3, 7);
+            assert false : "read in the xact of another session";
+        } catch (OMVCCClient.NoSuchXactException e) {
+            // expected
+        }
+        try {
+            c2.commit(t3);
+            assert false : "committed the xact of another session";
+        } catch (OMVCCClient.NoSuchXactException e) {
+            // expected
+        }
+        c1.write(t3, 8, INITIAL);
+        c1.rollback(t3);
+
+        c1.commit(t2);
+        c2.close();
+
+        // the xacts of a session that disconnects are rolled back
+        long t6 = c1.begin();
+        c1.write(t6, 9, 0);
+        c1.close();
+
+        OMVCCClient c3 = new OMVCCClient("localhost", port);
+        for (int tries = 0; ; tries++) {
+            long t7 = c3.begin();
+            try {
+                c3.write(t7, 9, INITIAL);
+                c3.commit(t7);
+                break;
+            } catch (OMVCCClient.AbortedException e) {
+                assert tries < 10000 : "the xact of a closed session was never rolled back";
+                Thread.sleep(1);
+            }
+        }
+
+        // restore the total for load
+        long t8 = c3.begin();
+        c3.write(t8, 7, INITIAL);
+        c3.commit(t8);
+        c3.close();
+    }
+
+    private static void load(final int port, int sessions, int seconds) throws Exception {
+        final long deadline = System.nanoTime() + seconds * 1000000000L;
+        final AtomicLong commits = new AtomicLong();
+        final AtomicLong aborts = new AtomicLong();
+        final List<Throwable> failures = Collections.synchronizedList(new ArrayList<Throwable>());
+
+        Thread[] threads = new Thread[sessions];
+        for (int s = 0; s < sessions; s++) {
+            final SplittableRandom random = new SplittableRandom(s);
+            threads[s] = new Thread(null, new Runnable() {
+                public void run() {
+                    try {
+                        OMVCCClient client = new OMVCCClient("localhost", port);
+                        while (System.nanoTime() < deadline) {
+                            if (transfer(client, random)) commits.incrementAndGet();
+                            else aborts.incrementAndGet();
+                        }
+                        client.close();
+                    } catch (Throwable e) {
+                        failures.add(e);
+                    }
+                }
+            }, "session-" + s, STACK_SIZE);
+        }
+
+        long start = System.nanoTime();
+        for (Thread thread : threads) thread.start();
+        for (Thread thread : threads) thread.join();
+        double elapsed = (System.nanoTime() - start) / 1e9;
+
+        if (!failures.isEmpty()) throw new AssertionError(failures.get(0));
+
+        long total = 0;
+        long xact = OMVCC.beginReadOnly();
+        for (int key = 0; key < KEYS; key++) total += OMVCC.read(xact, key);
+        OMVCC.commit(xact);
+        assert total == (long) KEYS * INITIAL : "the total changed to " + total;
+
+        long xacts = commits.get() + aborts.get();
+        System.out.println(String.format("%d sessions: %d xacts (%d committed) in %.1f s, %.0f xacts/s, %.0f requests/s",
+            sessions, xacts, commits.get(), elapsed, xacts / elapsed, 6 * xacts / elapsed));
+    }
+
+    // move a unit between two keys; return whether it committed
+    private static boolean transfer(OMVCCClient client, SplittableRandom random) throws Exception {
+        int from = random.nextInt(KEYS);
+        int to   = (from + 1 + random.nextInt(KEYS - 1)) % KEYS;
+
+        long xact = client.begin();
+        client.sendRead(xact, from);
+        client.sendRead(xact, to);
+        int a = client.awaitRead();
+        int b = client.awaitRead();
+
+        client.sendWrite(xact, from, a - 1);
+        client.sendWrite(xact, to, b + 1);
+        client.sendCommit(xact);
+
+        // once a request is refused, the next ones find no xact
+        boolean committed = true;
+        for (int i = 0; i < 3; i++) {
+            try {
+                client.await();
+            } catch (OMVCCClient.AbortedException e) {
+                committed = false;
+            } catch (OMVCCClient.NoSuchXactException e) {
+                committed = false;
+            }
+        }
+        return committed;
+    }
+}
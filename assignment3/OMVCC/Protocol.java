@@ -0,0 +1,44 @@
+/**
+ *  The wire protocol between Server and OMVCCClient, over TCP.
+ *
+ *  A request is an opcode byte followed by its arguments, and gets exactly
+ *  one reply, in the order the requests were sent: a client may send
+ *  several requests before reading their replies (pipelining). Integers are
+ *  big-endian, as with DataOutputStream.
+ *
+ *  Requests:
+ *   - BEGIN                                        -> OK [xact: long]
+ *   - READ     [xact: long][key: int]              -> OK [value: int]
+ *   - WRITE    [xact: long][key: int][value: int]  -> OK
+ *   - MODQUERY [xact: long][k: int]                -> OK [n: int][value: int] * n
+ *   - COMMIT   [xact: long]                        -> OK
+ *   - ROLLBACK [xact: long]                        -> OK
+ *
+ *  Besides OK, any request may be answered with:
+ *   - ABORTED [reason: int]: the store refused the request and aborted the
+ *     xact, for one of the reasons of OMVCC (NoSuchKey, WriteConflict...)
+ *   - NO_SUCH_XACT: the xact is unknown, over, or begun over another
+ *     connection
+ *   - FAILED [message: UTF]: anything else went wrong
+ *
+ *  An unknown opcode closes the connection. So does the client when it is
+ *  done; the server then rolls back the xacts begun over it that are still
+ *  running.
+ */
+final class Protocol {
+    private Protocol() {}
+
+    // opcodes
+    static final int BEGIN    = 1;
+    static final int READ     = 2;
+    static final int WRITE    = 3;
+    static final int MODQUERY = 4;
+    static final int COMMIT   = 5;
+    static final int ROLLBACK = 6;
+
+    // statuses
+    static final int OK           = 0;
+    static final int ABORTED      = 1;
+    static final int NO_SUCH_XACT = 2;
+    static final int FAILED       = 3;
+}
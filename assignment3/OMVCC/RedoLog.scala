@@ -0,0 +1,231 @@
+import java.nio.ByteBuffer
+import java.nio.channels.{ Channels, FileChannel }
+import java.nio.file.{ Paths, StandardOpenOption }
+import java.util.zip.CRC32
+
+// append-only redo log of the committed writes of OMVCC.
+//
+// a record is [length: int][crc32 of the payload: int] followed by the
+// payload [commit timestamp: long][n: int][key: int, value: int] * n, and
+// records are appended in commit timestamp order. records are first
+// buffered in memory; appending happens with the commit lock held, writing
+// them to the file happens outside of it, by one committer on behalf of all
+// those waiting (group commit), according to the durability mode:
+//  - Sync: commit returns once its record is written and forced to disk
+//  - Async: records are written and forced periodically in the background
+//  - NoSync: commit returns once its record is written, forcing is left to
+//    the operating system
+// a crash can therefore lose a suffix of the log, and may leave a torn
+// record at its end, which recovery detects and drops.
+final class RedoLog private (channel: FileChannel, durability: Int, flushPeriodMillis: Long) {
+  import RedoLog._
+  import java.util.concurrent.{ Executors, ScheduledExecutorService, ThreadFactory, TimeUnit }
+
+  require(durability == Sync || durability == Async || durability == NoSync, "unknown durability mode")
+
+  private val crc = new CRC32 // guarded by this
+
+  // records appended but not written yet, and the position of their end
+  private var buffer   = ByteBuffer.allocate(InitialBufferSize) // guarded by this
+  private var appended = channel.position                       // guarded by this
+
+  // positions up to which records were written, and forced
+  @volatile private var written = appended
+  @volatile private var forced  = appended
+
+  // serialize writing to the file
+  private val flushLock = new Object
+  private var spare     = ByteBuffer.allocate(InitialBufferSize) // guarded by flushLock
+
+  private val flusher: ScheduledExecutorService =
+    if (durability != Async) null
+    else {
+      val flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory {
+        def newThread(r: Runnable) = {
+          val thread = new Thread(r, "OMVCC-redo-log")
+          thread setDaemon true
+          thread
+        }
+      })
+
+      flusher.scheduleWithFixedDelay(new Runnable {
+        def run(): Unit = flush(RedoLog.this.synchronized { appended }, force = true)
+      }, flushPeriodMillis, flushPeriodMillis, TimeUnit.MILLISECONDS)
+
+      flusher
+    }
+
+  // buffer the record of a commit; return its log sequence number, to be
+  // given to awaitDurable once the commit lock is released
+  def append(commitTimestamp: Long, keys: Array[Int], values: Array[Int]): Long = synchronized {
+    val length = 8 + 4 + 8 * keys.length
+
+    if (buffer.remaining < HeaderBytes + length) {
+      val larger = ByteBuffer.allocate(2 * (buffer.capacity max (buffer.position() + HeaderBytes + length)))
+      buffer.flip()
+      larger put buffer
+      buffer = larger
+    }
+
+    val start = buffer.position()
+    buffer putInt length
+    buffer putInt 0 // crc, see below
+
+    buffer putLong commitTimestamp
+    buffer putInt keys.length
+    for { i <- keys.indices } {
+      buffer putInt keys(i)
+      buffer putInt values(i)
+    }
+
+    crc.reset()
+    crc.update(buffer.array, start + HeaderBytes, length)
+    buffer.putInt(start + 4, crc.getValue.toInt)
+
+    appended += HeaderBytes + length
+    appended
+  }
+
+  // position of the end of the records appended so far, which is also the
+  // log sequence number of the last one
+  def position: Long = synchronized { appended }
+
+  // return once the record with the given log sequence number is as durable
+  // as the durability mode promises
+  def awaitDurable(lsn: Long): Unit = durability match {
+    case Sync   => flush(lsn, force = true)
+    case NoSync => flush(lsn, force = false)
+    case _      => ()
+  }
+
+  // return once the record with the given log sequence number is written
+  // and forced, whatever the durability mode (see OMVCC.checkpoint)
+  def force(lsn: Long): Unit = flush(lsn, force = true)
+
+  // write and force everything appended so far, and close the file
+  def close(): Unit = {
+    if (flusher != null) flusher.shutdown()
+    flush(synchronized { appended }, force = true)
+    channel.close()
+  }
+
+  // write (and force) the buffered records if the one ending at lsn is not
+  // written (or forced) yet; whoever gets the lock first does it for all
+  // those waiting
+  private def flush(lsn: Long, force: Boolean): Unit = {
+    if ((if (force) forced else written) < lsn) flushLock.synchronized {
+      if (written < lsn) {
+        val (out, end) = synchronized {
+          val out = buffer
+          buffer = spare
+          (out, appended)
+        }
+
+        out.flip()
+        while (out.hasRemaining) channel write out
+
+        out.clear()
+        spare   = out
+        written = end
+      }
+
+      if (force && forced < lsn) {
+        channel force false
+        forced = written
+      }
+    }
+  }
+}
+
+object RedoLog {
+  // durability modes
+  final val Sync   = 0
+  final val Async  = 1
+  final val NoSync = 2
+
+  final val DefaultFlushPeriodMillis = 10L
+
+  private final val HeaderBytes       = 4 + 4
+  private final val InitialBufferSize = 1 << 16
+
+  // records larger than this are considered garbage
+  private final val MaxRecordBytes = 1 << 30
+
+  // open the log at path, creating it if needed; the commits it holds from
+  // position from on (see Checkpoint) are given to replay in commit
+  // timestamp order, a torn or corrupted suffix is dropped, and the next
+  // records are appended after the last valid one. the log is forced up to
+  // from before a checkpoint is written, so that a log ending before from
+  // does not go with it: appending below from would hide the next commits
+  // from the next recovery, thus an IllegalStateException is thrown
+  def open(path: String, durability: Int, flushPeriodMillis: Long = DefaultFlushPeriodMillis, from: Long = 0)
+          (replay: (Long, Array[Int], Array[Int]) => Unit): RedoLog = {
+    val channel = FileChannel.open(Paths.get(path),
+      StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)
+
+    if (channel.size < from) {
+      channel.close()
+      throw new IllegalStateException("the redo log " + path + " ends before position " + from + " of the checkpoint")
+    }
+
+    val end = read(channel, from, replay)
+    channel truncate end
+    channel position end
+
+    new RedoLog(channel, durability, flushPeriodMillis)
+  }
+
+  // give every valid record of the file from position from on to f, and
+  // return the position of the end of the last one
+  private def read(channel: FileChannel, from: Long, f: (Long, Array[Int], Array[Int]) => Unit): Long = {
+    import java.io.{ BufferedInputStream, DataInputStream, EOFException }
+
+    val in  = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel.position(from)), 1 << 16))
+    val crc = new CRC32
+
+    var end   = from
+    var valid = true
+
+    while (valid) {
+      try {
+        val length   = in.readInt()
+        val checksum = in.readInt()
+
+        valid = length >= 12 && length <= MaxRecordBytes && (length - 12) % 8 == 0
+
+        if (valid) {
+          val payload = new Array[Byte](length)
+          in readFully payload
+
+          crc.reset()
+          crc.update(payload, 0, length)
+          valid = crc.getValue.toInt == checksum
+
+          if (valid) {
+            val record          = ByteBuffer wrap payload
+            val commitTimestamp = record.getLong
+            val n               = record.getInt
+            val keys            = new Array[Int](n)
+            val values          = new Array[Int](n)
+
+            valid = n == (length - 12) / 8
+
+            for { i <- 0 until n if valid } {
+              keys(i)   = record.getInt
+              values(i) = record.getInt
+            }
+
+            if (valid) {
+              f(commitTimestamp, keys, values)
+              end += HeaderBytes + length
+            }
+          }
+        }
+      } catch {
+        case _: EOFException => valid = false
+      }
+    }
+
+    end
+  }
+}
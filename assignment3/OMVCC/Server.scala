@@ -0,0 +1,209 @@
+import java.io.{ BufferedInputStream, BufferedOutputStream, DataInputStream, DataOutputStream, IOException }
+import java.net.{ InetAddress, ProtocolException, ServerSocket, Socket, SocketException }
+import java.util.concurrent.ConcurrentHashMap
+import java.util.function.IntConsumer
+
+// serves OMVCC to other processes over TCP, on the loopback interface, in
+// the terms of Protocol (see OMVCCClient).
+//
+// every connection gets a thread of its own, which runs its requests one
+// after the other and answers each in turn. replies are buffered until no
+// more requests are waiting to be read, so that a client pipelining its
+// requests gets their replies in few packets, and every reply is flushed
+// before the thread blocks for the next request. a connection only runs
+// requests for the xacts begun over it, and those still running when it
+// closes are rolled back.
+//
+// the threads are platform threads, with small stacks: the JDK this builds
+// with has no virtual threads, which would make blocked connections cheaper
+// still.
+final class Server(requestedPort: Int, backlog: Int) {
+  import Server._
+
+  def this() = this(0, Server.DefaultBacklog)
+
+  private val listener = new ServerSocket(requestedPort, backlog, InetAddress.getLoopbackAddress)
+
+  // the connections being served, for close to close them
+  private val connections = ConcurrentHashMap.newKeySet[Socket]
+
+  private val acceptor = new Thread(new Runnable {
+    def run(): Unit =
+      try {
+        while (true) {
+          val connection = listener.accept()
+          connections add connection
+
+          val worker = new Thread(null, new Runnable {
+            def run(): Unit = serve(connection)
+          }, "OMVCC-connection", StackSize)
+
+          worker setDaemon true
+          worker.start()
+        }
+      } catch {
+        case _: SocketException => () // closed
+      }
+  }, "OMVCC-server")
+
+  acceptor setDaemon true
+  acceptor.start()
+
+  // the port the server listens on, picked by the system if 0 was requested
+  def port: Int = listener.getLocalPort
+
+  // stop accepting connections, and close the ones being served, whose
+  // running xacts are then rolled back
+  def close(): Unit = {
+    listener.close()
+
+    val open = connections.iterator
+    while (open.hasNext) open.next.close()
+  }
+
+  private def serve(connection: Socket): Unit = {
+    val session = new Session
+
+    try {
+      connection setTcpNoDelay true
+
+      val in  = new DataInputStream(new BufferedInputStream(connection.getInputStream, BufferSize))
+      val out = new DataOutputStream(new BufferedOutputStream(connection.getOutputStream, BufferSize))
+
+      var op = in.read()
+      while (op >= 0) {
+        session.handle(op, in, out)
+        if (in.available == 0) out.flush()
+        op = in.read()
+      }
+    } catch {
+      case _: IOException => () // the client went away, or spoke gibberish, or the server closed
+    } finally {
+      session.rollbackAll()
+
+      connections remove connection
+      connection.close()
+    }
+  }
+}
+
+object Server {
+  final val DefaultBacklog = 4096
+
+  private final val BufferSize = 8192
+  private final val StackSize  = 256 * 1024
+
+  // the requests of a connection, run by its thread
+  private final class Session {
+    // the xacts begun here and still running, as far as we know
+    private val begun = scala.collection.mutable.Set[Long]()
+
+    // the result of a mod query
+    private val found = new Found
+
+    // read the arguments of request op, run it and write its reply
+    def handle(op: Int, in: DataInputStream, out: DataOutputStream): Unit =
+      op match {
+        case Protocol.BEGIN =>
+          var xact = 0L
+          if (attempt(out, -1) { xact = OMVCC.begin }) {
+            begun += xact
+            out writeLong xact
+          }
+
+        case Protocol.READ =>
+          val xact  = in.readLong
+          val key   = in.readInt
+          var value = 0
+          if (owned(out, xact) && attempt(out, xact) { value = OMVCC.read(xact, key) }) out writeInt value
+
+        case Protocol.WRITE =>
+          val xact  = in.readLong
+          val key   = in.readInt
+          val value = in.readInt
+          if (owned(out, xact)) attempt(out, xact) { OMVCC.write(xact, key, value) }
+
+        case Protocol.MODQUERY =>
+          val xact = in.readLong
+          val k    = in.readInt
+          found.size = 0
+          if (owned(out, xact) && attempt(out, xact) { OMVCC.modquery(xact, k, found) }) {
+            out writeInt found.size
+            for { i <- 0 until found.size } out writeInt found.values(i)
+          }
+
+        case Protocol.COMMIT =>
+          val xact = in.readLong
+          if (owned(out, xact) && attempt(out, xact) { OMVCC.commit(xact) }) begun -= xact
+
+        case Protocol.ROLLBACK =>
+          val xact = in.readLong
+          if (owned(out, xact) && attempt(out, xact) { OMVCC.rollback(xact) }) begun -= xact
+
+        case _ => throw new ProtocolException("unknown opcode " + op)
+      }
+
+    // once the connection is closed
+    def rollbackAll(): Unit =
+      for { xact <- begun } try OMVCC.rollback(xact) catch { case _: OMVCC.NoSuchXactException => () }
+
+    // whether xact was begun here and is still running; otherwise, whether
+    // it is another connection's or over, reply that there is no such xact
+    private def owned(out: DataOutputStream, xact: Long): Boolean =
+      begun(xact) || { out writeByte Protocol.NO_SUCH_XACT; false }
+
+    // run body, which only calls the store on behalf of xact, and write the
+    // status of its outcome; return whether it succeeded, in which case its
+    // results follow. xact is forgotten once the store is done with it, but
+    // not when anything else went wrong: it might still be running, for
+    // rollbackAll to end
+    private def attempt(out: DataOutputStream, xact: Long)(body: => Unit): Boolean = {
+      val failure =
+        try { body; null }
+        catch { case e: Exception => e }
+
+      failure match {
+        case null =>
+          out writeByte Protocol.OK
+
+        case OMVCC.NoSuchKeyException(_, _) =>
+          refused(out, xact, OMVCC.NoSuchKey)
+
+        case OMVCC.BadWriteException(_, _, _, reason) =>
+          refused(out, xact, reason)
+
+        case OMVCC.BadCommitException(_, reason) =>
+          refused(out, xact, reason)
+
+        case OMVCC.NoSuchXactException(_) =>
+          begun -= xact
+          out writeByte Protocol.NO_SUCH_XACT
+
+        case e =>
+          out writeByte Protocol.FAILED
+          out writeUTF String.valueOf(e)
+      }
+
+      failure eq null
+    }
+
+    // the store aborted xact for the given reason
+    private def refused(out: DataOutputStream, xact: Long, reason: Int): Unit = {
+      begun -= xact
+      out writeByte Protocol.ABORTED
+      out writeInt reason
+    }
+  }
+
+  // the result of a mod query, reused by the requests of a connection
+  private final class Found extends IntConsumer {
+    var values = new Array[Int](16)
+    var size   = 0
+
+    def accept(value: Int): Unit = {
+      if (size == values.length) values = java.util.Arrays.copyOf(values, size * 2)
+      values(size) = value
+      size += 1
+    }
+  }
+}
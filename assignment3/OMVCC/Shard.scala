@@ -0,0 +1,70 @@
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.locks.ReentrantLock
+import java.util.function.BiFunction
+
+// a partition of the keys of OMVCC: their versions, striped over segments of
+// their own, the recent commits that wrote some of them, and the lock that
+// serializes the validation of those commits.
+//
+// keys are assigned by ranges of StripeKeys consecutive keys dealt to the
+// shards in turn, so that nearby keys share a shard while small key spaces
+// still spread over all of them. an xact validates and installs in the
+// shards it touched only, locking them in index order.
+final class Shard(owners: VersionStore.Owners, keyIndex: java.util.NavigableSet[Integer]) {
+  val storage = new VersionStore(owners, Shard.SegmentsPerShard, keyIndex)
+  val commits = new CommitLog // guarded by lock
+  val lock    = new ReentrantLock
+
+  // in SerializableSnapshot mode, the xacts that read each key, for the
+  // concurrent writers of the key to find (see Conflicts)
+  private val readers = new ConcurrentHashMap[Int, List[Conflicts]]
+
+  def addReader(key: Int, reader: Conflicts): Unit = readers.merge(key, reader :: Nil, Shard.Prepend)
+
+  def readersOf(key: Int): List[Conflicts] = readers.getOrDefault(key, Nil)
+
+  // forget the readers satisfying obsolete
+  def pruneReaders(obsolete: Conflicts => Boolean): Unit = {
+    val keys = readers.keys
+    while (keys.hasMoreElements) pruneReadersOf(keys.nextElement, obsolete)
+  }
+
+  // same, among the readers of key only
+  def pruneReadersOf(key: Int, obsolete: Conflicts => Boolean): Unit =
+    readers.computeIfPresent(key, new BiFunction[Int, List[Conflicts], List[Conflicts]] {
+      def apply(key: Int, list: List[Conflicts]) = {
+        val kept = list filterNot obsolete
+        if (kept.isEmpty) null else kept
+      }
+    })
+}
+
+object Shard {
+  // at most 31, sets of shards are given as bit masks
+  final val Count            = 16
+  final val SegmentsPerShard = 8
+
+  private final val StripeBits = 6 // 64 keys per range
+
+  // every shard, as a mask
+  final val All = (1 << Count) - 1
+
+  def indexOf(key: Int): Int = (key >>> StripeBits) & (Count - 1)
+
+  def maskOf(key: Int): Int = 1 << indexOf(key)
+
+  private val Prepend = new BiFunction[List[Conflicts], List[Conflicts], List[Conflicts]] {
+    def apply(readers: List[Conflicts], reader: List[Conflicts]) = reader.head :: readers
+  }
+
+  // the shards of the keys from until `until`
+  def maskOf(from: Int, until: Int): Int =
+    if (until <= from) 0
+    else {
+      val first = from >> StripeBits
+      val last  = (until - 1) >> StripeBits
+
+      if (last.toLong - first >= Count - 1) All
+      else (first to last foldLeft 0) { (mask, stripe) => mask | 1 << (stripe & (Count - 1)) }
+    }
+}
@@ -0,0 +1,97 @@
+import java.util.concurrent.LinkedBlockingQueue
+import scala.util.control.NonFatal
+
+// what a commit of the primary wrote, as shipped to its followers, along
+// with the wall-clock time it was shipped at (see Follower.lagMillis)
+final class WriteSet(val commitTimestamp: Long,
+                     val keys: Array[Int],
+                     val values: Array[Int],
+                     val shippedAtMillis: Long)
+
+// one-way channel from the primary to a follower. the primary sends the
+// write sets of its commits in commit timestamp order, from a thread of its
+// own for every follower (see Shipper): send may wait for the follower,
+// without holding up commits. see OMVCC.addFollower and Follower.
+trait Transport {
+  // primary side; once it throws, the primary detaches the follower and
+  // closes the transport
+  def send(writes: WriteSet): Unit
+
+  // follower side: the next write set, waiting for it if needed, or null
+  // once the transport is closed and drained
+  def receive(): WriteSet
+
+  def close(): Unit
+}
+
+// in-process transport, for a follower living in the same JVM
+final class LoopbackTransport extends Transport {
+  private val queue = new LinkedBlockingQueue[WriteSet]
+
+  @volatile private var closed = false
+
+  def send(writes: WriteSet): Unit = {
+    if (closed) throw new IllegalStateException("transport closed")
+    queue put writes
+  }
+
+  def receive(): WriteSet = {
+    val writes = queue.take()
+    if (writes eq LoopbackTransport.End) null else writes
+  }
+
+  def close(): Unit = if (!closed) {
+    closed = true
+    queue put LoopbackTransport.End
+  }
+}
+
+object LoopbackTransport {
+  private val End = new WriteSet(-1, Array(), Array(), 0)
+}
+
+
+// the primary side of a follower: sends the write sets given to ship through
+// transport, in that order, from a thread of its own, so that commits only
+// queue them. once send fails, the rest is dropped, detach is called and the
+// transport closed.
+final class Shipper(val transport: Transport, detach: Shipper => Unit) {
+  private val queue = new LinkedBlockingQueue[WriteSet]
+
+  @volatile private var failed = false
+
+  private val sender = new Thread(new Runnable {
+    def run(): Unit = {
+      try {
+        var writes = queue.take()
+        while (writes ne Shipper.End) {
+          transport send writes
+          writes = queue.take()
+        }
+      } catch {
+        case NonFatal(_) | _: InterruptedException =>
+          failed = true
+          queue.clear()
+          detach(Shipper.this)
+      }
+
+      try transport.close() catch { case NonFatal(_) => () }
+    }
+  }, "OMVCC-shipper")
+
+  sender setDaemon true
+  sender.start()
+
+  // never waits
+  def ship(writes: WriteSet): Unit = if (!failed) queue put writes
+
+  // send the write sets shipped so far, then close the transport
+  def close(): Unit = {
+    queue put Shipper.End
+    sender.join()
+  }
+}
+
+object Shipper {
+  private val End = new WriteSet(-1, Array(), Array(), 0)
+}
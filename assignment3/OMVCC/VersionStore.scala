@@ -0,0 +1,469 @@
+// primitive storage for the versions of the <int, int> store.
+//
+// keys are spread over segments; each segment is an open-addressing table
+// from a key to the newest version of its chain, and versions are slots of
+// parallel arrays (value, stamp, next) recycled through a free list. the
+// stamp of a version is either its commit timestamp or, while it is not
+// committed yet, the id of the xact owning it (ids are allocated from
+// OwnerBase on, far above any timestamp).
+//
+// write hands the xact a reference to its uncommitted version, through
+// which the xact reads, installs or discards it without looking its key up
+// nor walking its chain.
+//
+// chains are kept newest first: a version is only ever pushed on top of
+// versions committed before its writer started, and at most one uncommitted
+// version (the head) exists per key. hence the most recent version visible
+// to a snapshot is the first one along the chain that is old enough.
+//
+// every operation locks the segment of its key, and once the arrays have
+// grown to the working set nothing gets allocated on the read, write and
+// commit paths.
+//
+// the keys can also be kept in order in a given keyIndex, which every key is
+// added to along with its first version, and never removed from: keys stay
+// in the tables, with no version at worst.
+final class VersionStore(owners: VersionStore.Owners,
+                         val segmentCount: Int = VersionStore.DefaultSegments,
+                         keyIndex: java.util.NavigableSet[Integer] = null) {
+  import VersionStore._
+
+  require(Integer.bitCount(segmentCount) == 1, "the number of segments must be a power of two")
+
+  private val segments     = Array.fill(segmentCount) { new Segment }
+  private val segmentShift = 32 - Integer.numberOfTrailingZeros(segmentCount)
+  private val segmentMask  = segmentCount - 1
+
+  // install a new uncommitted version of key owned by the given xact, or
+  // overwrite the one it already has, and return a reference to it (see
+  // isVersion); refuse when the newest version was committed after
+  // startTimestamp (return Stale), or is uncommitted and owned by another
+  // xact (return the id of that xact)
+  def write(key: Int, value: Int, owner: Long, startTimestamp: Long): Long = {
+    val i = segmentIndexOf(key)
+    val s = segments(i)
+    s.synchronized {
+      val slot = s.findOrInsert(key)
+      val head = s.heads(slot)
+
+      if (head == NoVersion) {
+        s.heads(slot) = s.allocate(value, owner, NoVersion)
+        versionRef(i, s.heads(slot))
+      } else {
+        val stamp = s.stamps(head)
+
+        if (stamp == owner) { s.values(head) = value; versionRef(i, head) }
+        else if (isOwner(stamp)) stamp
+        else if (stamp > startTimestamp) Stale
+        else {
+          s.heads(slot) = s.allocate(value, owner, head)
+          versionRef(i, s.heads(slot))
+        }
+      }
+    }
+  }
+
+  // value of the uncommitted version write returned a reference to
+  def readOwn(ref: Long): Int = {
+    val s = segments(segmentOfRef(ref))
+    s.synchronized {
+      val v = versionOfRef(ref)
+
+      assert(isOwner(s.stamps(v)))
+      s.values(v)
+    }
+  }
+
+  // value the given xact sees for key: its own uncommitted version if any,
+  // or else the most recent version visible to its snapshot, as in scan
+  def readAs(key: Int, before: Long, owner: Long): Long = {
+    val s = segmentOf(key)
+    s.synchronized {
+      val slot = s.find(key)
+      val head = if (slot < 0) NoVersion else s.heads(slot)
+
+      if (head >= 0 && s.stamps(head) == owner) s.values(head)
+      else s.visible(head, before)
+    }
+  }
+
+  // value of the most recent version of key visible to a snapshot taken at
+  // `before`, if any; see visibleTimestamp
+  def readVisible(key: Int, before: Long): Long = {
+    val s = segmentOf(key)
+    s.synchronized {
+      val slot = s.find(key)
+      if (slot < 0) Missing else s.visible(s.heads(slot), before)
+    }
+  }
+
+  // value of the version the given uncommitted version supersedes, if any
+  def readPrevious(ref: Long): Long = {
+    val s = segments(segmentOfRef(ref))
+    s.synchronized {
+      val v = versionOfRef(ref)
+
+      assert(isOwner(s.stamps(v)))
+
+      val previous = s.next(v)
+      if (previous == NoVersion) Missing else s.values(previous)
+    }
+  }
+
+  // turn the given uncommitted version into a version committed at the
+  // given timestamp
+  def install(ref: Long, commitTimestamp: Long): Unit = {
+    val s = segments(segmentOfRef(ref))
+    s.synchronized {
+      val v = versionOfRef(ref)
+
+      // the write operation *must* have installed an uncommitted version
+      assert(isOwner(s.stamps(v)))
+      s.stamps(v) = commitTimestamp
+    }
+  }
+
+  // make value the most recent version of key, committed at the given
+  // timestamp, which must be more recent than the versions of key; meant
+  // for recovery, when there is no snapshot to preserve older versions for
+  def restore(key: Int, value: Int, commitTimestamp: Long): Unit = {
+    val s = segmentOf(key)
+    s.synchronized {
+      val slot = s.findOrInsert(key)
+      val head = s.heads(slot)
+
+      if (head == NoVersion) s.heads(slot) = s.allocate(value, commitTimestamp, NoVersion)
+      else {
+        assert(!isOwner(s.stamps(head)) && s.stamps(head) < commitTimestamp)
+        s.values(head) = value
+        s.stamps(head) = commitTimestamp
+      }
+    }
+  }
+
+  // same, keeping the older versions for the snapshots reading them; meant
+  // for replicas, which apply commits made elsewhere
+  def push(key: Int, value: Int, commitTimestamp: Long): Unit = {
+    val s = segmentOf(key)
+    s.synchronized {
+      val slot = s.findOrInsert(key)
+      val head = s.heads(slot)
+
+      assert(head == NoVersion || (!isOwner(s.stamps(head)) && s.stamps(head) < commitTimestamp))
+      s.heads(slot) = s.allocate(value, commitTimestamp, head)
+    }
+  }
+
+  // drop the given uncommitted version of key; being the newest version of
+  // key, it is unlinked from the head of its chain
+  def discard(key: Int, ref: Long): Unit = {
+    val s = segments(segmentOfRef(ref))
+    s.synchronized {
+      val slot = s.find(key)
+      val v    = versionOfRef(ref)
+
+      assert(slot >= 0 && s.heads(slot) == v && isOwner(s.stamps(v)))
+      s.heads(slot) = s.next(v)
+      s.release(v)
+    }
+  }
+
+  // number of keys, as of some recent point: segments are not locked
+  def size: Int = (segments foldLeft 0) { _ + _.used }
+
+  // whether some version of key, committed or not, satisfies p
+  def exists(key: Int)(p: Int => Boolean): Boolean = {
+    val s = segmentOf(key)
+    s.synchronized {
+      val slot = s.find(key)
+      var v    = if (slot < 0) NoVersion else s.heads(slot)
+
+      while (v >= 0 && !p(s.values(v))) v = s.next(v)
+
+      v >= 0
+    }
+  }
+
+  // visit every key with the value of each of its versions, committed or not
+  def foreachVersion(f: (Int, Int) => Unit): Unit = {
+    for { s <- segments } s.synchronized {
+      var slot = 0
+      while (slot < s.keys.length) {
+        var v = s.heads(slot)
+        while (v >= 0) {
+          f(s.keys(slot), s.values(v))
+          v = s.next(v)
+        }
+        slot += 1
+      }
+    }
+  }
+
+  // give f the number of versions, committed or not, of every key
+  def foreachChainLength(f: Int => Unit): Unit = {
+    for { s <- segments } s.synchronized {
+      var slot = 0
+      while (slot < s.keys.length) {
+        var v      = s.heads(slot)
+        var length = 0
+        while (v >= 0) {
+          length += 1
+          v = s.next(v)
+        }
+        if (s.heads(slot) != Free) f(length)
+        slot += 1
+      }
+    }
+  }
+
+  // visit every key with the value the given xact sees for it: its own
+  // uncommitted version if any, or else the most recent version visible to
+  // its snapshot; keys with no such version are skipped. the pairs of a
+  // segment are copied out before visiting them, so that the visitor runs
+  // without holding any lock
+  def scan(before: Long, owner: Long, visitor: Visitor): Unit = scan(before, owner, visitor, 0, segmentCount)
+
+  // same, for the keys of the segments from until `until` only; scans of
+  // disjoint ranges of segments visit disjoint sets of keys, and can run
+  // concurrently
+  def scan(before: Long, owner: Long, visitor: Visitor, from: Int, until: Int): Unit = {
+    var keys   = new Array[Int](InitialCapacity)
+    var values = new Array[Int](InitialCapacity)
+
+    for { s <- segments.view(from, until) } {
+      var count = 0
+
+      s.synchronized {
+        if (keys.length < s.keys.length) {
+          keys   = new Array[Int](s.keys.length)
+          values = new Array[Int](s.keys.length)
+        }
+
+        var slot = 0
+        while (slot < s.keys.length) {
+          val head = s.heads(slot)
+
+          if (head >= 0) {
+            val value =
+              if (s.stamps(head) == owner) s.values(head).toLong
+              else s.visible(head, before)
+
+            if (value != Missing) {
+              keys(count)   = s.keys(slot)
+              values(count) = value.toInt
+              count += 1
+            }
+          }
+
+          slot += 1
+        }
+      }
+
+      var i = 0
+      while (i < count) {
+        visitor.visit(keys(i), values(i))
+        i += 1
+      }
+    }
+  }
+
+  // drop the versions no snapshot taken at lowWater or later can see: for
+  // each key, those older than its most recent version committed before
+  // lowWater; return the number of versions released. segments are locked
+  // one at a time so that other operations keep going meanwhile
+  def collect(lowWater: Long): Long = {
+    var released = 0L
+
+    for { s <- segments } s.synchronized {
+      var slot = 0
+      while (slot < s.keys.length) {
+        var v = s.heads(slot)
+        while (v >= 0 && (isOwner(s.stamps(v)) || s.stamps(v) >= lowWater)) v = s.next(v)
+
+        if (v >= 0) {
+          var older = s.next(v)
+          s.next(v) = NoVersion
+
+          while (older >= 0) {
+            val o = s.next(older)
+            s.release(older)
+            released += 1
+            older = o
+          }
+        }
+
+        slot += 1
+      }
+    }
+
+    released
+  }
+
+  // the timestamp at which a stamp becomes visible: its commit timestamp,
+  // including the one already granted to the owner of a version that is
+  // being installed, or -1 for a version that is not committed
+  private def visibleTimestamp(stamp: Long): Long =
+    if (isOwner(stamp)) owners.commitTimestampOf(stamp) else stamp
+
+  private def segmentIndexOf(key: Int): Int = (hash(key) >>> segmentShift) & segmentMask
+
+  private def segmentOf(key: Int): Segment = segments(segmentIndexOf(key))
+
+
+  private final class Segment {
+    // open-addressing table, key -> head of its version chain
+    var keys  = new Array[Int](InitialCapacity)
+    var heads = Array.fill(InitialCapacity) { Free }
+    var used  = 0 // number of table slots holding a key
+
+    // version slots; `next` links a version to the previous one of its key
+    var values    = new Array[Int](InitialCapacity)
+    var stamps    = new Array[Long](InitialCapacity)
+    var next      = new Array[Int](InitialCapacity)
+    var allocated = 0         // number of version slots ever handed out
+    var freeList  = NoVersion // released version slots, linked by `next`
+
+    def find(key: Int): Int = {
+      val mask = keys.length - 1
+      var slot = hash(key) & mask
+
+      while (heads(slot) != Free && keys(slot) != key) slot = (slot + 1) & mask
+
+      if (heads(slot) == Free) -1 else slot
+    }
+
+    def findOrInsert(key: Int): Int = {
+      if ((used + 1) * 4 > keys.length * 3) rehash(keys.length * 2)
+
+      val mask = keys.length - 1
+      var slot = hash(key) & mask
+
+      while (heads(slot) != Free && keys(slot) != key) slot = (slot + 1) & mask
+
+      if (heads(slot) == Free) {
+        keys(slot)  = key
+        heads(slot) = NoVersion
+        used += 1
+
+        if (keyIndex != null) keyIndex add key
+      }
+
+      slot
+    }
+
+    // the most recent version of the chain starting at head visible to a
+    // snapshot taken at `before`; since chains are newest first, this is the
+    // first one we meet, and a read at a recent snapshot stops at the head
+    def visible(head: Int, before: Long): Long = {
+      var v = head
+
+      while (v >= 0) {
+        val ts = visibleTimestamp(stamps(v))
+        if (ts >= 0 && ts < before) return values(v)
+        v = next(v)
+      }
+
+      Missing
+    }
+
+    def allocate(value: Int, stamp: Long, older: Int): Int = {
+      val v =
+        if (freeList != NoVersion) {
+          val v = freeList
+          freeList = next(v)
+          v
+        } else {
+          if (allocated == values.length) grow(values.length * 2)
+          allocated += 1
+          allocated - 1
+        }
+
+      values(v) = value
+      stamps(v) = stamp
+      next(v)   = older
+      v
+    }
+
+    def release(v: Int): Unit = {
+      next(v)  = freeList
+      freeList = v
+    }
+
+    private def rehash(capacity: Int): Unit = {
+      val oldKeys  = keys
+      val oldHeads = heads
+
+      keys  = new Array[Int](capacity)
+      heads = Array.fill(capacity) { Free }
+
+      val mask = capacity - 1
+      var i    = 0
+      while (i < oldKeys.length) {
+        if (oldHeads(i) != Free) {
+          var slot = hash(oldKeys(i)) & mask
+          while (heads(slot) != Free) slot = (slot + 1) & mask
+          keys(slot)  = oldKeys(i)
+          heads(slot) = oldHeads(i)
+        }
+        i += 1
+      }
+    }
+
+    private def grow(capacity: Int): Unit = {
+      values = java.util.Arrays.copyOf(values, capacity)
+      stamps = java.util.Arrays.copyOf(stamps, capacity)
+      next   = java.util.Arrays.copyOf(next, capacity)
+    }
+  }
+}
+
+object VersionStore {
+  // resolve the commit timestamp granted to the owner of an uncommitted
+  // version, or -1 if it has none (yet)
+  trait Owners {
+    def commitTimestampOf(xact: Long): Long
+  }
+
+  trait Visitor {
+    def visit(key: Int, value: Int): Unit
+  }
+
+  // returned by the read operations when there is no suitable version;
+  // any other result is an Int value
+  final val Missing = Long.MinValue
+
+  // xact ids, used as the stamp of uncommitted versions, are above this
+  final val OwnerBase = 1L << 62
+
+  // outcome of write, besides a reference to the version written and the id
+  // of the xact owning the newest version
+  final val Stale = -1L
+
+  // whether an outcome of write is a reference to the version written: the
+  // index of its segment, then of its slot, which stay put until it is
+  // discarded, or committed and then collected
+  def isVersion(outcome: Long): Boolean = outcome >= 0 && outcome < OwnerBase
+
+  final val DefaultSegments = 64
+
+  // memory held by a version slot: value, stamp and next
+  final val VersionBytes = 4 + 8 + 4
+
+  private final val InitialCapacity = 16
+
+  private final val Free      = -2 // unused table slot
+  private final val NoVersion = -1 // empty chain, or end of a chain
+
+  private def isOwner(stamp: Long): Boolean = stamp > OwnerBase
+
+  private def versionRef(segment: Int, version: Int): Long = (segment.toLong << 32) | version
+
+  private def segmentOfRef(ref: Long): Int = (ref >>> 32).toInt
+
+  private def versionOfRef(ref: Long): Int = ref.toInt
+
+  private def hash(key: Int): Int = {
+    val h = key * 0x9E3779B9
+    h ^ (h >>> 16)
+  }
+}
@@ -0,0 +1,114 @@
+package omvcc.jmh;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.function.IntConsumer;
+
+/**
+ *  The OMVCC API, as seen from the benchmarks.
+ *
+ *  JMH refuses benchmarks in the default package, and Java code in a named
+ *  package cannot refer to the classes of the default package, where OMVCC
+ *  lives. The calls go through method handles held in static finals, which
+ *  the JIT inlines like direct calls.
+ */
+final class Api {
+    private static final MethodHandle BEGIN;
+    private static final MethodHandle BEGIN_READ_ONLY;
+    private static final MethodHandle READ;
+    private static final MethodHandle WRITE;
+    private static final MethodHandle COMMIT;
+    private static final MethodHandle ROLLBACK;
+    private static final MethodHandle MODQUERY;
+    private static final MethodHandle REGISTER_MODULUS;
+    private static final MethodHandle START_GC;
+    private static final MethodHandle SET_ISOLATION;
+
+    private static final Class<?> BAD_WRITE;
+    private static final Class<?> BAD_COMMIT;
+
+    static {
+        try {
+            Class<?> omvcc = Class.forName("OMVCC");
+            MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+
+            BEGIN            = lookup.findStatic(omvcc, "begin", MethodType.methodType(long.class));
+            BEGIN_READ_ONLY  = lookup.findStatic(omvcc, "beginReadOnly", MethodType.methodType(long.class));
+            READ             = lookup.findStatic(omvcc, "read", MethodType.methodType(int.class, long.class, int.class));
+            WRITE            = lookup.findStatic(omvcc, "write", MethodType.methodType(void.class, long.class, int.class, int.class));
+            COMMIT           = lookup.findStatic(omvcc, "commit", MethodType.methodType(void.class, long.class));
+            ROLLBACK         = lookup.findStatic(omvcc, "rollback", MethodType.methodType(void.class, long.class));
+            MODQUERY         = lookup.findStatic(omvcc, "modquery", MethodType.methodType(void.class, long.class, int.class, IntConsumer.class));
+            REGISTER_MODULUS = lookup.findStatic(omvcc, "registerModulus", MethodType.methodType(void.class, int.class));
+            START_GC         = lookup.findStatic(omvcc, "startGarbageCollector", MethodType.methodType(void.class, long.class));
+            SET_ISOLATION    = lookup.findStatic(omvcc, "setIsolation", MethodType.methodType(void.class, int.class));
+
+            BAD_WRITE  = Class.forName("OMVCC$BadWriteException");
+            BAD_COMMIT = Class.forName("OMVCC$BadCommitException");
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private Api() {}
+
+    static long begin() throws Throwable {
+        return (long) BEGIN.invokeExact();
+    }
+
+    static long beginReadOnly() throws Throwable {
+        return (long) BEGIN_READ_ONLY.invokeExact();
+    }
+
+    static int read(long xact, int key) throws Throwable {
+        return (int) READ.invokeExact(xact, key);
+    }
+
+    static void write(long xact, int key, int value) throws Throwable {
+        WRITE.invokeExact(xact, key, value);
+    }
+
+    static void commit(long xact) throws Throwable {
+        COMMIT.invokeExact(xact);
+    }
+
+    static void rollback(long xact) throws Throwable {
+        ROLLBACK.invokeExact(xact);
+    }
+
+    static void modquery(long xact, int k, IntConsumer f) throws Throwable {
+        MODQUERY.invokeExact(xact, k, f);
+    }
+
+    static void registerModulus(int k) throws Throwable {
+        REGISTER_MODULUS.invokeExact(k);
+    }
+
+    static void startGarbageCollector(long periodMillis) throws Throwable {
+        START_GC.invokeExact(periodMillis);
+    }
+
+    // see OMVCC.SnapshotValidation and OMVCC.SerializableSnapshot
+    static void setIsolation(int level) throws Throwable {
+        SET_ISOLATION.invokeExact(level);
+    }
+
+    // whether e is the way OMVCC refuses an operation, after aborting its xact
+    static boolean isAbort(Throwable e) {
+        return BAD_WRITE.isInstance(e) || BAD_COMMIT.isInstance(e);
+    }
+
+    static boolean isBadWrite(Throwable e) {
+        return BAD_WRITE.isInstance(e);
+    }
+
+    // commit n xacts, each writing every key from 0 until keys to value
+    static void load(int keys, int value, int n) throws Throwable {
+        for (int i = 0; i < n; i++) {
+            long xact = begin();
+            for (int key = 0; key < keys; key++) write(xact, key, value);
+            commit(xact);
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package omvcc.jmh;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ *  Reads of keys with a given number of committed versions, from a recent
+ *  snapshot, which finds its version at the head of the chain, and from a
+ *  snapshot older than every version but the first one, which walks the
+ *  whole chain.
+ *
+ *  Also xacts writing a few such keys and rolling back: they reach their
+ *  uncommitted versions directly, and should take as long at any depth.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ChainDepthBenchmark {
+    private static final int KEYS   = 1000;
+    private static final int WRITES = 4;
+
+    @Param({ "1", "10", "100", "1000" })
+    public int depth;
+
+    private long oldSnapshot;
+    private long recentSnapshot;
+
+    @Setup(Level.Trial)
+    public void load() throws Throwable {
+        Api.load(KEYS, 0, 1);
+        oldSnapshot = Api.beginReadOnly();
+
+        Api.load(KEYS, 1, depth - 1);
+        recentSnapshot = Api.beginReadOnly();
+    }
+
+    @TearDown(Level.Trial)
+    public void end() throws Throwable {
+        Api.commit(oldSnapshot);
+        Api.commit(recentSnapshot);
+    }
+
+    @State(Scope.Thread)
+    public static class Dice {
+        final SplittableRandom random = new SplittableRandom();
+    }
+
+    @Benchmark
+    public int readRecent(Dice dice) throws Throwable {
+        return Api.read(recentSnapshot, dice.random.nextInt(KEYS));
+    }
+
+    @Benchmark
+    public int readOld(Dice dice) throws Throwable {
+        return Api.read(oldSnapshot, dice.random.nextInt(KEYS));
+    }
+
+    // with several threads, a write might meet the version of another one,
+    // which aborts the xact instead
+    @Benchmark
+    public void writeAndRollback(Dice dice) throws Throwable {
+        try {
+            long xact = Api.begin();
+            for (int i = 0; i < WRITES; i++) Api.write(xact, dice.random.nextInt(KEYS), i);
+            Api.rollback(xact);
+        } catch (Throwable e) {
+            if (!Api.isAbort(e)) throw e;
+        }
+    }
+}
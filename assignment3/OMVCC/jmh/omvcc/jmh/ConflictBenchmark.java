@@ -0,0 +1,57 @@
+package omvcc.jmh;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ *  Read-modify-write xacts on a handful of hot keys, run from several
+ *  threads (see run-jmh.sh): most of them abort, either in write, when a
+ *  concurrent xact holds an uncommitted version of the key or committed
+ *  one since, or in commit, when a key it read was written since.
+ *
+ *  The rates of commits and of each kind of abort are reported next to the
+ *  xact rate (see Outcomes).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConflictBenchmark {
+    @Param({ "1", "8" })
+    public int hotKeys;
+
+    @Setup(Level.Trial)
+    public void load() throws Throwable {
+        Api.load(hotKeys, 0, 1);
+        Api.startGarbageCollector(100);
+    }
+
+    @State(Scope.Thread)
+    public static class Dice {
+        final SplittableRandom random = new SplittableRandom();
+    }
+
+    // move one unit from a hot key to another
+    @Benchmark
+    public void transfer(Dice dice, Outcomes outcomes) throws Throwable {
+        int from = dice.random.nextInt(hotKeys);
+        int to   = dice.random.nextInt(hotKeys);
+
+        try {
+            long xact = Api.begin();
+            int a = Api.read(xact, from);
+            int b = Api.read(xact, to);
+            Api.write(xact, from, a - 1);
+            Api.write(xact, to, (from == to ? a - 1 : b) + 1);
+            Api.commit(xact);
+            outcomes.commits++;
+        } catch (Throwable e) {
+            if (!Api.isAbort(e)) throw e;
+            outcomes.count(e);
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package omvcc.jmh;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ *  Xacts reading a few keys and writing their sum to another one, in each
+ *  of the ways commit makes xacts serializable (see OMVCC.setIsolation).
+ *
+ *  With SnapshotValidation, an xact aborts whenever a concurrent xact wrote
+ *  one of the keys it read. With SerializableSnapshot, only if moreover a
+ *  concurrent xact read the key it wrote (it would then be a pivot, see
+ *  Conflicts): the share of xacts that commit should be higher, the more so
+ *  with more threads (see run-jmh.sh) and fewer keys. Aborts are counted
+ *  apart from commits (see Outcomes).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IsolationBenchmark {
+    private static final int READS = 4;
+
+    @Param({ "0", "1" }) // SnapshotValidation, SerializableSnapshot
+    public int isolation;
+
+    @Param({ "64", "1000" })
+    public int keys;
+
+    @Setup(Level.Trial)
+    public void load() throws Throwable {
+        Api.setIsolation(isolation);
+        Api.load(keys, 0, 1);
+        Api.startGarbageCollector(100);
+    }
+
+    @State(Scope.Thread)
+    public static class Dice {
+        final SplittableRandom random = new SplittableRandom();
+    }
+
+    @Benchmark
+    public void sum(Dice dice, Outcomes outcomes) throws Throwable {
+        try {
+            long xact = Api.begin();
+            int sum = 0;
+            for (int i = 0; i < READS; i++) sum += Api.read(xact, dice.random.nextInt(keys));
+            Api.write(xact, dice.random.nextInt(keys), sum + 1);
+            Api.commit(xact);
+            outcomes.commits++;
+        } catch (Throwable e) {
+            if (!Api.isAbort(e)) throw e;
+            outcomes.count(e);
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package omvcc.jmh;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntConsumer;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ *  Mod queries over a store of a given number of keys, holding distinct
+ *  values, with the modulus registered (indexed) or not (scanned).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ModqueryBenchmark {
+    @Param({ "10000", "1000000" })
+    public int keys;
+
+    @Param({ "2", "7", "1000" })
+    public int modulus;
+
+    @Param({ "false", "true" })
+    public boolean indexed;
+
+    @Setup(Level.Trial)
+    public void load() throws Throwable {
+        long xact = Api.begin();
+        for (int key = 0; key < keys; key++) Api.write(xact, key, key);
+        Api.commit(xact);
+
+        if (indexed) Api.registerModulus(modulus);
+    }
+
+    @State(Scope.Thread)
+    public static class Sum implements IntConsumer {
+        long sum;
+
+        public void accept(int value) {
+            sum += value;
+        }
+    }
+
+    @Benchmark
+    public long modquery(Sum sum) throws Throwable {
+        long xact = Api.beginReadOnly();
+        Api.modquery(xact, modulus, sum);
+        Api.commit(xact);
+        return sum.sum;
+    }
+}
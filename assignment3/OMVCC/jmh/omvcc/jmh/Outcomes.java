@@ -0,0 +1,34 @@
+package omvcc.jmh;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ *  How the xacts of a benchmark ended, reported by JMH next to the primary
+ *  result as totals per iteration ("#"), in Throughput as in SampleTime
+ *  mode: counted as EVENTS, since JMH drops OPERATIONS counters from the
+ *  latter.
+ */
+@State(Scope.Thread)
+@AuxCounters(AuxCounters.Type.EVENTS)
+public class Outcomes {
+    public long commits;
+    public long badWrites;  // refused by write
+    public long badCommits; // refused by commit
+
+    @Setup(Level.Iteration)
+    public void reset() {
+        commits    = 0;
+        badWrites  = 0;
+        badCommits = 0;
+    }
+
+    // an abort, see Api.isAbort
+    void count(Throwable e) {
+        if (Api.isBadWrite(e)) badWrites++;
+        else badCommits++;
+    }
+}
@@ -0,0 +1,63 @@
+package omvcc.jmh;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ *  Xacts of a few operations on uniformly chosen keys, a given percentage
+ *  of which are writes, followed by a commit.
+ *
+ *  Conflicts abort some xacts as soon as writes are involved; aborts are
+ *  counted apart from commits (see Outcomes).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ReadWriteBenchmark {
+    private static final int OPERATIONS = 4;
+
+    @Param({ "1000", "100000" })
+    public int keys;
+
+    @Param({ "0", "10", "50" })
+    public int writePercent;
+
+    @Setup(Level.Trial)
+    public void load() throws Throwable {
+        Api.load(keys, 0, 1);
+
+        // keep the version chains short, as in a long-running store
+        Api.startGarbageCollector(100);
+    }
+
+    @State(Scope.Thread)
+    public static class Dice {
+        final SplittableRandom random = new SplittableRandom();
+    }
+
+    @Benchmark
+    public int xact(Dice dice, Outcomes outcomes) throws Throwable {
+        int sink = 0;
+
+        try {
+            long xact = Api.begin();
+            for (int i = 0; i < OPERATIONS; i++) {
+                int key = dice.random.nextInt(keys);
+                if (dice.random.nextInt(100) < writePercent) Api.write(xact, key, i);
+                else sink += Api.read(xact, key);
+            }
+            Api.commit(xact);
+            outcomes.commits++;
+        } catch (Throwable e) {
+            if (!Api.isAbort(e)) throw e;
+            outcomes.count(e);
+        }
+
+        return sink;
+    }
+}
@@ -37,6 +37,39 @@ else
         java -ea -cp ./classes OMVCCTest1
 end
 
+# RUN TEST 3, recovery after a crash, from the log alone then from a checkpoint
+if [ $countScala != 0 ]
+        java -ea -cp $SCALA_HOME/lib/scala-library.jar:./classes OMVCCTest3
+        java -ea -cp $SCALA_HOME/lib/scala-library.jar:./classes OMVCCTest3 checkpointed
+else
+        java -ea -cp ./classes OMVCCTest3
+        java -ea -cp ./classes OMVCCTest3 checkpointed
+end
+
+# RUN TEST 4, replication to a follower
+if [ $countScala != 0 ]
+        java -ea -cp $SCALA_HOME/lib/scala-library.jar:./classes OMVCCTest4
+else
+        java -ea -cp ./classes OMVCCTest4
+end
+
+# RUN TEST 5, random schedules from several threads, then again in
+# SerializableSnapshot mode
+if [ $countScala != 0 ]
+        java -ea -cp $SCALA_HOME/lib/scala-library.jar:./classes OMVCCTest5
+        java -ea -cp $SCALA_HOME/lib/scala-library.jar:./classes OMVCCTest5 5000 4 2 5 ssi
+else
+        java -ea -cp ./classes OMVCCTest5
+        java -ea -cp ./classes OMVCCTest5 5000 4 2 5 ssi
+end
+
+# RUN TEST 6, sessions over the loopback interface through the server
+if [ $countScala != 0 ]
+        java -ea -cp $SCALA_HOME/lib/scala-library.jar:./classes OMVCCTest6
+else
+        java -ea -cp ./classes OMVCCTest6
+end
+
 # RUN TEST 2, with subtests 1 - 15
 for TEST in (seq 15)
         if [ $countScala != 0 ]
@@ -54,5 +87,35 @@ for TEST in (seq 15)
         end
 end
 
+# RUN TEST 2 again, with the moduli of the mod queries indexed
+for TEST in (seq 15)
+        if [ $countScala != 0 ]
+                java -cp $SCALA_HOME/lib/scala-library.jar:./classes OMVCCTest2 $TEST indexed
+        else
+                java -cp ./classes OMVCCTest2 $TEST indexed
+        end
+
+        if [ $status != 0 ]
+                echo "TEST $TEST (indexed): FAILED"
+        else
+                echo "TEST $TEST (indexed): PASSED"
+        end
+end
+
+# RUN TEST 2 again, with the mod queries scanning in parallel
+for TEST in (seq 15)
+        if [ $countScala != 0 ]
+                java -cp $SCALA_HOME/lib/scala-library.jar:./classes OMVCCTest2 $TEST parallel
+        else
+                java -cp ./classes OMVCCTest2 $TEST parallel
+        end
+
+        if [ $status != 0 ]
+                echo "TEST $TEST (parallel): FAILED"
+        else
+                echo "TEST $TEST (parallel): PASSED"
+        end
+end
+
 rm -rf ./classes
 
@@ -15,8 +15,20 @@ fi
 
 if [ $countScala != 0 ]; then
         eval "java -ea -cp $SCALA_HOME/lib/scala-library.jar:./classes OMVCCTest1"
+        eval "java -ea -cp $SCALA_HOME/lib/scala-library.jar:./classes OMVCCTest3"
+        eval "java -ea -cp $SCALA_HOME/lib/scala-library.jar:./classes OMVCCTest3 checkpointed"
+        eval "java -ea -cp $SCALA_HOME/lib/scala-library.jar:./classes OMVCCTest4"
+        eval "java -ea -cp $SCALA_HOME/lib/scala-library.jar:./classes OMVCCTest5"
+        eval "java -ea -cp $SCALA_HOME/lib/scala-library.jar:./classes OMVCCTest5 5000 4 2 5 ssi"
+        eval "java -ea -cp $SCALA_HOME/lib/scala-library.jar:./classes OMVCCTest6"
 else
         eval "java -ea -cp ./classes OMVCCTest1"
+        eval "java -ea -cp ./classes OMVCCTest3"
+        eval "java -ea -cp ./classes OMVCCTest3 checkpointed"
+        eval "java -ea -cp ./classes OMVCCTest4"
+        eval "java -ea -cp ./classes OMVCCTest5"
+        eval "java -ea -cp ./classes OMVCCTest5 5000 4 2 5 ssi"
+        eval "java -ea -cp ./classes OMVCCTest6"
 fi
 
 testNum=1
@@ -37,5 +49,26 @@ do
         fi
         let testNum=testNum+1
 done
+
+# same tests, with the moduli of the mod queries indexed, then with the
+# mod queries scanning in parallel
+for MODE in indexed parallel
+do
+for TEST in {1..4}
+do
+        if [ $countScala != 0 ]; then
+                eval "java -cp $SCALA_HOME/lib/scala-library.jar:./classes OMVCCTest2 $TEST $MODE"
+        else
+                eval "java -cp ./classes OMVCCTest2 $TEST $MODE"
+        fi
+        rc=$?
+        if [[ $rc != 0 ]] ; then
+                echo "TEST $testNum: FAILED"
+        else
+                echo "TEST $testNum: PASSED"
+        fi
+        let testNum=testNum+1
+done
+done
 rm -rf ./classes
 
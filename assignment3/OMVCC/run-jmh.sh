@@ -0,0 +1,38 @@
+#!/bin/bash
+
+# Builds the store along with the JMH benchmarks of ./jmh, and runs them
+# with 1, 2, 4 and 8 threads (or those listed in JMH_THREADS), reporting
+# the throughput, the latency percentiles (p0.99 among them) and, through
+# the GC profiler, the allocation rate per operation (gc.alloc.rate.norm).
+#
+# JMH_HOME must hold the jars of jmh-core and jmh-generator-annprocess, and
+# of their dependencies (jopt-simple, commons-math3). Arguments are given
+# to JMH, e.g. to run some benchmarks with some parameters only:
+#
+#   ./run-jmh.sh Conflict -p hotKeys=1
+
+BASEDIR=$(dirname $0)
+
+if [ -z "$JMH_HOME" ]; then
+        echo "JMH_HOME undefined"
+        exit 3
+fi
+
+cd $BASEDIR
+rm -rf ./classes
+mkdir -p ./classes
+
+JMH_CP=$(ls -1 $JMH_HOME/*.jar | tr '\n' ':')
+CP=$JMH_CP$SCALA_HOME/lib/scala-library.jar:./classes
+
+scalac -d ./classes *.java *.scala &&
+        javac -d ./classes -classpath $SCALA_HOME/lib/scala-library.jar:./classes *.java &&
+        javac -d ./classes -classpath $CP -processorpath $JMH_CP $(find jmh -name '*.java') ||
+        { echo "FAILURE TO BUILD"; exit 1; }
+
+for THREADS in ${JMH_THREADS:-1 2 4 8}
+do
+        java -cp $CP org.openjdk.jmh.Main -t $THREADS -prof gc "$@"
+done
+
+rm -rf ./classes